@@ -4,6 +4,7 @@ import java.time.Clock;
 import services.ApplicationTimer;
 import services.AtomicCounter;
 import services.Counter;
+import services.SimilarRecipesIndex;
 
 /**
  * This class is a Guice module that tells Guice how to bind several
@@ -24,6 +25,8 @@ public class Module extends AbstractModule {
         // Ask Guice to create an instance of ApplicationTimer when the
         // application starts.
         bind(ApplicationTimer.class).asEagerSingleton();
+        // Build the similar recipes index on its own threads as the application starts
+        bind(SimilarRecipesIndex.class).asEagerSingleton();
         // Set AtomicCounter as the implementation for Counter.
         bind(Counter.class).to(AtomicCounter.class);
     }
@@ -6,23 +6,33 @@ import play.mvc.Http;
 import play.mvc.Result;
 import play.mvc.Results;
 import play.mvc.Security;
+import services.SignedTokens;
+import services.TokenCache;
 
+import javax.inject.Inject;
 import java.util.Optional;
 
 public class Authorization extends Security.Authenticator {
 
+    @Inject
+    TokenCache tokenCache;
+
+    @Inject
+    SignedTokens signedTokens;
+
     @Override
     public String getUsername(Http.Context ctx) {
         Optional<String> authHeader = ctx.request().header("Authorization");
 
         if (authHeader.isPresent()) {
             String auth = authHeader.get();
-            Token token = Token.findByToken(auth);
-            if (token == null) {
+            User user = signedTokens.isSigned(auth)
+                    ? findSignedTokenUser(auth)
+                    : findTokenUser(auth);
+            if (user == null) {
                 return null;
             }
 
-            User user = token.getUser();
             ctx.args.put("logged-user", user);
 
             return user.getId().toString();
@@ -37,4 +47,46 @@ public class Authorization extends Security.Authenticator {
                 new ErrorObject(ErrorObject.USER_UNAUTHORIZED,
                         BaseController.getMessage("user_unauthorized")).toJson());
     }
+
+    // Only the id is cached, every request gets its own reference to the user
+    private User findTokenUser(String auth) {
+        Long userId = tokenCache.get(auth);
+        if (userId != null) {
+            return User.getReference(userId);
+        }
+
+        Token token = Token.findByToken(auth);
+        if (token == null) {
+            return null;
+        }
+
+        User user = token.getUser();
+        tokenCache.put(auth, user.getId());
+
+        return user;
+    }
+
+    // Signed tokens only need the database when the user's token generation is unknown
+    private User findSignedTokenUser(String auth) {
+        long[] claims = signedTokens.verify(auth);
+        if (claims == null) {
+            return null;
+        }
+
+        Long userId = claims[0];
+        Long generation = signedTokens.currentGeneration(userId);
+        if (generation == null) {
+            generation = User.findTokenId(userId);
+            if (generation == null) {
+                return null;
+            }
+            signedTokens.rotate(userId, generation);
+        }
+
+        if (signedTokens.isRevoked(generation) || generation != claims[1]) {
+            return null;
+        }
+
+        return User.getReference(userId);
+    }
 }
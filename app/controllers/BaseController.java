@@ -1,20 +1,116 @@
 package controllers;
 
+import com.fasterxml.jackson.databind.ObjectWriter;
+import models.BaseModel;
+import models.Fieldset;
+import models.Keyset;
+import models.Recipe;
+import models.RecipeSummary;
+import models.Review;
 import models.User;
-import play.cache.SyncCacheApi;
 import play.data.FormFactory;
 import play.mvc.Controller;
 import play.mvc.Http;
+import play.mvc.Result;
+import services.AutocompleteIndex;
+import services.Bulkhead;
+import services.Bulkheads;
+import services.PantryIndex;
+import services.RecipeSearchIndex;
+import services.SimilarRecipesIndex;
+import services.TaggedCache;
 
 import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 abstract class BaseController extends Controller {
 
+    static final int COLLECTION_CACHE_EXPIRATION = 30 * 60;
+    static final int COUNT_CACHE_EXPIRATION = 10 * 60;
+
+    static final String JSON = "json";
+    static final String XML = "xml";
+    static final String CBOR = "cbor";
+    static final String SMILE = "smile";
+
+    static final String RECIPES_TAG = "recipes";
+    // Listings of recipes that also depend on properties dropped on every recipe write, like ratings
+    static final String RECIPE_CHANGES_TAG = "recipes:changes";
+    static final String USERS_TAG = "users";
+
     @Inject
     FormFactory formFactory;
 
     @Inject
-    SyncCacheApi cache;
+    TaggedCache cache;
+
+    @Inject
+    RecipeSearchIndex searchIndex;
+
+    @Inject
+    PantryIndex pantryIndex;
+
+    @Inject
+    AutocompleteIndex autocompleteIndex;
+
+    @Inject
+    SimilarRecipesIndex similarRecipesIndex;
+
+    @Inject
+    Bulkheads bulkheads;
+
+    // Runs the database work of a search or a listing on their bulkhead
+    CompletionStage<Result> onSearch(Supplier<Result> work) {
+        return onBulkhead(bulkheads.search(), work);
+    }
+
+    // Runs the database work of a write on its bulkhead
+    CompletionStage<Result> onWrite(Supplier<Result> work) {
+        return onBulkhead(bulkheads.write(), work);
+    }
+
+    // Runs the database work of a read of a single resource on its bulkhead
+    CompletionStage<Result> onRead(Supplier<Result> work) {
+        return onBulkhead(bulkheads.read(), work);
+    }
+
+    /**
+     * Runs blocking database work on the given bulkhead, with the HTTP
+     * context of the current request, so that it never holds the threads
+     * handling requests. Work that does not fit in its queue is answered
+     * with a 503 right away.
+     */
+    private static CompletionStage<Result> onBulkhead(Bulkhead bulkhead, Supplier<Result> work) {
+        CompletionStage<Result> result = bulkhead.supply(work);
+        if (result == null) {
+            return completed(status(SERVICE_UNAVAILABLE,
+                    new ErrorObject(ErrorObject.SERVICE_UNAVAILABLE,
+                            getMessage("service_unavailable")).toJson()));
+        }
+
+        return result;
+    }
+
+    // Result already known, with no database work left to do
+    static CompletionStage<Result> completed(Result result) {
+        return CompletableFuture.completedFuture(result);
+    }
 
     static String getMessage(String key) {
         return Http.Context.current().messages().at(key);
@@ -24,8 +120,279 @@ abstract class BaseController extends Controller {
         return (User) Http.Context.current().args.get("logged-user");
     }
 
-    String getSingleRecipeCacheKey(Long id) {
-        return "recipe-" + id;
+    // Format of the response negotiated from the Accept header, null if none is supported
+    static String getResponseFormat() {
+        if (request().accepts("application/json")) {
+            return JSON;
+        } else if (request().accepts("application/xml")) {
+            return XML;
+        } else if (request().accepts(Encodings.CBOR_CONTENT_TYPE)) {
+            return CBOR;
+        } else if (request().accepts(Encodings.SMILE_CONTENT_TYPE)) {
+            return SMILE;
+        }
+
+        return null;
+    }
+
+    /**
+     * Total count of a paged collection, computed as requested by the total
+     * query parameter: exactly (default), not at all (none), or once per
+     * filter set and then served from the cache (cached). The cached count
+     * is dropped whenever any of the given tags is invalidated.
+     */
+    Integer getTotalCount(Supplier<Integer> count, String key, String... tags) {
+        if (!isTotalRequested()) {
+            return null;
+        } else if ("cached".equals(request().getQueryString("total"))) {
+            String query = getCanonicalQuery("page", "sortBy", "total", "expand", "fields");
+            return cache.getOrElseUpdate("count-" + key + "?" + query, count, COUNT_CACHE_EXPIRATION, c -> tags);
+        }
+
+        return count.get();
+    }
+
+    /**
+     * Value of a query parameter that must be a non negative integer, the
+     * given default if it is missing, or null if it is not valid.
+     */
+    static Integer getNonNegativeParameter(String name, int defaultValue) {
+        String value = request().getQueryString(name);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            return (parsed >= 0) ? parsed : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static boolean isTotalRequested() {
+        return !"none".equals(request().getQueryString("total"));
+    }
+
+    /**
+     * Page of search results, served from the cache when an equivalent
+     * search was already run. Entries are keyed by the canonical query
+     * without the excluded parameters, and dropped whenever any of the given
+     * tags is invalidated, so cached totals are always exact.
+     */
+    SearchPage getSearchPage(String key, Function<Boolean, SearchPage> search, String[] tags, String... excluded) {
+        boolean counted = isTotalRequested();
+
+        return cache.getOrElseUpdate(key + "?" + getCanonicalQuery(excluded) + (counted ? "" : "#uncounted"),
+                () -> search.apply(counted), COLLECTION_CACHE_EXPIRATION, p -> tags);
+    }
+
+    /**
+     * Writes a page of a collection from the cached responses of its
+     * elements, loading the missing ones at once and caching them for
+     * later requests of the collection or of the single elements.
+     */
+    Result displayCachedCollection(String name, String format, SearchPage page, Integer pageNumber,
+                                   Function<Long, String> key,
+                                   Function<List<Long>, Map<Long, CachedResponse>> render) {
+        Map<String, Long> keys = new LinkedHashMap<>();
+        for (Long id : page.getIds()) {
+            keys.put(key.apply(id), id);
+        }
+
+        Map<String, CachedResponse> responses = cache.getOrElseUpdateAll(keys.keySet(),
+                missing -> {
+                    List<Long> ids = new ArrayList<>(missing.size());
+                    for (String k : missing) {
+                        ids.add(keys.get(k));
+                    }
+                    Map<String, CachedResponse> rendered = new HashMap<>();
+                    render.apply(ids).forEach((id, response) -> rendered.put(key.apply(id), response));
+                    return rendered;
+                }, 0, CachedResponse::getTags);
+
+        // Elements deleted since the search was cached are skipped
+        List<CachedResponse> elements = new ArrayList<>(keys.size());
+        for (String k : keys.keySet()) {
+            CachedResponse response = responses.get(k);
+            if (response != null) {
+                elements.add(response);
+            }
+        }
+
+        return CachedResponse.collection(request(), format, name, pageNumber, page.getTotal(), elements);
+    }
+
+    /**
+     * Properties of the recipes to expand in listings, requested by the
+     * expand query parameter as a comma separated list, or null if some of
+     * them are unknown.
+     */
+    static Set<String> getRecipeExpansion() {
+        Set<String> expand = new HashSet<>();
+        String requested = request().getQueryString("expand");
+        if (requested == null || requested.trim().isEmpty()) {
+            return expand;
+        }
+
+        for (String property : requested.split(",")) {
+            property = property.trim();
+            if (!property.equals(Recipe.EXPAND_ALL) && !Recipe.EXPANDABLE_PROPERTIES.contains(property)) {
+                return null;
+            }
+            expand.add(property);
+        }
+
+        return expand;
+    }
+
+    /**
+     * Fields of the given entity requested by the fields query parameter,
+     * or null if some of them cannot be requested.
+     */
+    static Fieldset getFieldset(Class<? extends BaseModel> type) {
+        return Fieldset.parse(type, request().getQueryString("fields"));
+    }
+
+    // Entity read with nothing but the requested fields
+    static Result displayFieldset(String format, String name, Fieldset fields, BaseModel entity) {
+        String etag = ETags.ofFieldset(format, fields, entity);
+        if (ETags.matches(request(), etag)) {
+            return notModified(etag);
+        }
+
+        if (!format.equals(XML)) {
+            return ok(Encodings.encode(fields.getWriter(Encodings.getMapper(format)), entity))
+                    .as(Encodings.getContentType(format)).withHeader(ETAG, etag);
+        } else {
+            return ok(views.xml.fieldset.render(name, fields.getValues(entity))).withHeader(ETAG, etag);
+        }
+    }
+
+    // Page of entities read with nothing but the requested fields. The total is left out when it is null
+    static Result displayFieldsets(String format, String name, String element, Integer page, Integer total,
+                                   Fieldset fields, List<? extends BaseModel> entities) {
+        String etag = ETags.ofFieldsets(format, page, (total != null) ? total : -1, fields, entities);
+        if (ETags.matches(request(), etag)) {
+            return notModified(etag);
+        }
+
+        if (!format.equals(XML)) {
+            ObjectWriter writer = fields.getWriter(Encodings.getMapper(format));
+            return ok().chunked(StreamedCollection.encoded(format, writer, page, total, name, entities))
+                    .as(Encodings.getContentType(format)).withHeader(ETAG, etag);
+        } else {
+            return ok().chunked(StreamedCollection.xml(page, total, name, entities,
+                    entity -> views.xml._fieldset.render(element, fields.getValues(entity))))
+                    .as(CachedResponse.XML_CONTENT_TYPE).withHeader(ETAG, etag);
+        }
+    }
+
+    /**
+     * Page of recipes as shown by listings: just the requested fields if
+     * any, otherwise their summaries with just the expanded properties,
+     * loaded at once and cached per page of ids, or the full recipes
+     * spliced from their cached responses if everything is expanded.
+     */
+    Result displayRecipes(String format, SearchPage recipes, Integer page, Set<String> expand, Fieldset fields) {
+        if (!fields.isAll()) {
+            return displayFieldsets(format, "recipes", "recipe", page, recipes.getTotal(), fields,
+                    Recipe.findByIds(recipes.getIds(), fields));
+        }
+
+        if (expand.contains(Recipe.EXPAND_ALL)) {
+            return displayCachedCollection("recipes", format, recipes, page,
+                    id -> getSingleRecipeResponseCacheKey(id, format),
+                    ids -> {
+                        Map<Long, CachedResponse> responses = new HashMap<>();
+                        for (Recipe recipe : Recipe.findByIds(ids)) {
+                            responses.put(recipe.getId(), renderRecipe(recipe, format));
+                        }
+                        return responses;
+                    });
+        }
+
+        List<RecipeSummary> summaries = cache.getOrElseUpdate(getRecipeSummariesCacheKey(recipes.getIds(), expand),
+                () -> Recipe.findSummariesByIds(recipes.getIds(), expand), COLLECTION_CACHE_EXPIRATION,
+                BaseController::getRecipeSummaryTags);
+        Integer total = recipes.getTotal();
+        String etag = ETags.ofRecipeSummaries(format, page, (total != null) ? total : -1, expand, summaries);
+        if (ETags.matches(request(), etag)) {
+            return notModified(etag);
+        }
+
+        if (!format.equals(XML)) {
+            ObjectWriter writer = Encodings.getMapper(format).writer();
+            return ok()
+                    .chunked(StreamedCollection.encoded(format, writer, page, total, "recipes", summaries))
+                    .as(Encodings.getContentType(format)).withHeader(ETAG, etag);
+        } else {
+            return ok()
+                    .chunked(StreamedCollection.xml(page, total, "recipes", summaries,
+                            views.xml._recipeSummary::render))
+                    .as(CachedResponse.XML_CONTENT_TYPE).withHeader(ETAG, etag);
+        }
+    }
+
+    static CachedResponse renderRecipe(Recipe recipe, String format) {
+        String etag = ETags.ofRecipe(format, recipe);
+        if (!format.equals(XML)) {
+            return CachedResponse.encoded(format, recipe, etag, getRecipeTags(recipe));
+        } else {
+            return CachedResponse.xml(views.xml.recipe.render(recipe), etag, getRecipeTags(recipe));
+        }
+    }
+
+    /**
+     * Query string of the request in a canonical form, so that equivalent
+     * requests share it: parameters sorted by name, the excluded ones
+     * left out, and values trimmed and lower cased since filters do not
+     * depend on case.
+     */
+    static String getCanonicalQuery(String... excluded) {
+        Map<String, String[]> query = new TreeMap<>(request().queryString());
+        for (String parameter : excluded) {
+            query.remove(parameter);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String[]> parameter : query.entrySet()) {
+            String[] values = parameter.getValue().clone();
+            for (int i = 0; i < values.length; i++) {
+                values[i] = values[i].trim().toLowerCase(Locale.ROOT);
+            }
+            Arrays.sort(values);
+            for (String value : values) {
+                sb.append(parameter.getKey()).append('=').append(value).append('&');
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Keyset of the page pointed by a cursor, or of the first page if there
+     * is no cursor. Returns null if the cursor is malformed, or does not fit
+     * the given sort properties.
+     */
+    static <T> Keyset getKeyset(String cursor, String sortBy, Map<String, Keyset.SortProperty<T>> sortProperties) {
+        if (cursor == null || cursor.isEmpty()) {
+            return Keyset.first((sortBy != null) ? sortBy.split(":") : null, sortProperties);
+        }
+
+        try {
+            return Keyset.decode(cursor, sortProperties);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    static boolean isConditional() {
+        return request().hasHeader(IF_NONE_MATCH);
+    }
+
+    static Result notModified(String etag) {
+        return status(NOT_MODIFIED).withHeader(ETAG, etag);
     }
 
     String getSingleRecipeResponseCacheKey(Long id, String format) {
@@ -36,9 +403,79 @@ abstract class BaseController extends Controller {
         return "recipes-" + page;
     }
 
-    void deleteRecipeFromCache(Long id) {
-        cache.remove(getSingleRecipeCacheKey(id));
-        cache.remove(getSingleRecipeResponseCacheKey(id, "json"));
-        cache.remove(getSingleRecipeResponseCacheKey(id, "xml"));
+    String getRecipeSummariesCacheKey(List<Long> ids, Set<String> expand) {
+        StringBuilder sb = new StringBuilder("recipe-summaries-");
+        sb.append(String.join(",", new TreeSet<>(expand))).append('-');
+        for (Long id : ids) {
+            sb.append(id).append(',');
+        }
+
+        return sb.toString();
+    }
+
+    static String getRecipeTag(Long id) {
+        return "recipe:" + id;
+    }
+
+    static String getUserTag(Long id) {
+        return "user:" + id;
+    }
+
+    static String getUserRecipesTag(Long userId) {
+        return "user-recipes:" + userId;
+    }
+
+    // Tags of a single recipe: the recipe itself and every user shown with it
+    static String[] getRecipeTags(Recipe recipe) {
+        List<String> tags = new ArrayList<>();
+        tags.add(getRecipeTag(recipe.getId()));
+        tags.add(getUserTag(recipe.getUser().getId()));
+        for (Review review : recipe.getReviews()) {
+            tags.add(getUserTag(review.getUser().getId()));
+        }
+
+        return tags.toArray(new String[0]);
+    }
+
+    // Tags of a page of summaries: every recipe in it and every user shown with them
+    static String[] getRecipeSummaryTags(List<RecipeSummary> summaries) {
+        Set<String> tags = new HashSet<>();
+        for (RecipeSummary summary : summaries) {
+            tags.add(getRecipeTag(summary.getId()));
+            if (summary.getUser() != null) {
+                tags.add(getUserTag(summary.getUser().getId()));
+            }
+            if (summary.getReviews() != null) {
+                for (Review review : summary.getReviews()) {
+                    tags.add(getUserTag(review.getUser().getId()));
+                }
+            }
+        }
+
+        return tags.toArray(new String[0]);
+    }
+
+    // Created or deleted recipes change every listing they belong to
+    void invalidateRecipeCache(Recipe recipe) {
+        cache.invalidate(getRecipeTag(recipe.getId()), RECIPES_TAG, RECIPE_CHANGES_TAG,
+                getUserRecipesTag(recipe.getUser().getId()));
+    }
+
+    // Listings only change with the properties they are filtered or sorted by, the rest is in the recipe entries
+    void invalidateRecipeCache(Long id, Collection<String> changed) {
+        if (Collections.disjoint(changed, Recipe.LISTED_PROPERTIES)) {
+            cache.invalidate(getRecipeTag(id), RECIPE_CHANGES_TAG);
+        } else {
+            cache.invalidate(getRecipeTag(id), RECIPES_TAG, RECIPE_CHANGES_TAG);
+        }
+    }
+
+    // Searches filtered by rating, or sorted by a property that is not listed, depend on every recipe write
+    static String[] getRecipeSearchTags(String minRating, String[] sortBy) {
+        if (minRating != null || (sortBy != null && !Recipe.LISTED_PROPERTIES.contains(sortBy[0]))) {
+            return new String[] { RECIPES_TAG, RECIPE_CHANGES_TAG };
+        }
+
+        return new String[] { RECIPES_TAG };
     }
 }
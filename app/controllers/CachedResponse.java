@@ -0,0 +1,205 @@
+package controllers;
+
+import akka.util.ByteString;
+import akka.util.ByteStringBuilder;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import play.http.HttpEntity;
+import play.mvc.Http;
+import play.mvc.Result;
+import play.mvc.Results;
+import play.twirl.api.Content;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Fully encoded response body and its entity tag, ready to be cached and
+ * written as is.
+ *
+ * Bodies big enough are also kept gzipped, compressed just once when the
+ * response is built, and served as such to the clients that accept it.
+ */
+public class CachedResponse {
+
+    static final String JSON_CONTENT_TYPE = "application/json";
+    static final String XML_CONTENT_TYPE = "application/xml; charset=utf-8";
+
+    static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+
+    // Smaller bodies are not worth compressing, since they would hardly shrink
+    static final int COMPRESSION_THRESHOLD = 1024;
+
+    private static final String GZIP = "gzip";
+
+    // Responses are negotiated by both the format and the content coding they are sent in
+    private static final String VARY = Http.HeaderNames.ACCEPT + ", " + Http.HeaderNames.ACCEPT_ENCODING;
+
+    private final ByteString body;
+    private final ByteString gzipped;
+    private final String contentType;
+    private final String etag;
+    private final String[] tags;
+
+    private CachedResponse(ByteString body, String contentType, String etag, String[] tags) {
+        this.body = body;
+        this.gzipped = (body.size() >= COMPRESSION_THRESHOLD) ? gzip(body) : null;
+        this.contentType = contentType;
+        this.etag = etag;
+        this.tags = tags;
+    }
+
+    // Value written in JSON or any of its binary encodings
+    static CachedResponse encoded(String format, Object value, String etag, String[] tags) {
+        ObjectWriter writer = Encodings.getMapper(format).writer();
+        return new CachedResponse(ByteString.fromArrayUnsafe(Encodings.encode(writer, value)),
+                Encodings.getContentType(format), etag, tags);
+    }
+
+    static CachedResponse xml(Content content, String etag, String[] tags) {
+        return new CachedResponse(ByteString.fromArrayUnsafe(content.body().getBytes(StandardCharsets.UTF_8)),
+                XML_CONTENT_TYPE, etag, tags);
+    }
+
+    /**
+     * Writes a page of a collection by splicing the cached bodies of its
+     * elements, in the same shape as {@link StreamedCollection}, so that no
+     * element has to be loaded or serialized again. The total is left out
+     * when it is null.
+     */
+    static Result collection(Http.Request request, String format, String name, Integer page, Integer total,
+                             List<CachedResponse> elements) {
+        String etag = ETags.ofResponses(format, page, (total != null) ? total : -1, elements);
+        if (ETags.matches(request, etag)) {
+            return Results.status(Http.Status.NOT_MODIFIED).withHeader(Http.HeaderNames.ETAG, etag);
+        }
+
+        ByteStringBuilder sb = new ByteStringBuilder();
+        if (!format.equals(BaseController.XML)) {
+            ByteString[] envelope = Encodings.getEnvelope(format, page, total, name);
+            ByteString separator = Encodings.getSeparator(format);
+            sb.append(envelope[0]);
+            for (int i = 0; i < elements.size(); i++) {
+                if (i > 0) {
+                    sb.append(separator);
+                }
+                sb.append(Encodings.toElement(format, elements.get(i).body));
+            }
+            sb.append(envelope[1]);
+        } else {
+            sb.append(ByteString.fromString(XML_DECLARATION + "\n\n<page>" + page + "</page>\n"
+                    + ((total != null) ? "<total>" + total + "</total>\n" : "") + "<" + name + ">\n"));
+            for (CachedResponse element : elements) {
+                sb.append(element.getXmlElement());
+            }
+            sb.append(ByteString.fromString("</" + name + ">"));
+        }
+
+        return Results.ok()
+                .sendEntity(new HttpEntity.Strict(sb.result(), Optional.of(Encodings.getContentType(format))))
+                .withHeader(Http.HeaderNames.ETAG, etag);
+    }
+
+    /**
+     * Answers conditional requests whose entity tag still matches with a
+     * 304, and sends the gzipped body to the clients that accept it, with
+     * its own entity tag. Tags already differ per format, since it is part
+     * of every tag, so each representation has a tag of its own.
+     */
+    Result toResult(Http.Request request) {
+        boolean compressed = gzipped != null && acceptsGzip(request);
+        String etag = compressed ? ETags.ofGzipped(this.etag) : this.etag;
+        String[] headers = { Http.HeaderNames.ETAG, etag, Http.HeaderNames.VARY, VARY };
+        if (ETags.matches(request, etag)) {
+            return Results.status(Http.Status.NOT_MODIFIED).withHeaders(headers);
+        }
+
+        Result result = Results.ok()
+                .sendEntity(new HttpEntity.Strict(compressed ? gzipped : body, Optional.of(contentType)))
+                .withHeaders(headers);
+
+        return compressed ? result.withHeader(Http.HeaderNames.CONTENT_ENCODING, GZIP) : result;
+    }
+
+    /**
+     * Whether the Accept-Encoding header of the request accepts gzip with a
+     * nonzero quality, either by name or through the wildcard if gzip is
+     * not named.
+     */
+    private static boolean acceptsGzip(Http.Request request) {
+        Optional<String> header = request.header(Http.HeaderNames.ACCEPT_ENCODING);
+        if (!header.isPresent()) {
+            return false;
+        }
+
+        Boolean wildcard = null;
+        for (String coding : header.get().split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim().toLowerCase(Locale.ROOT);
+            boolean accepted = true;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=") && isZero(parameter.substring(2))) {
+                    accepted = false;
+                }
+            }
+
+            if (name.equals(GZIP) || name.equals("x-gzip")) {
+                return accepted;
+            } else if (name.equals("*")) {
+                wildcard = accepted;
+            }
+        }
+
+        return Boolean.TRUE.equals(wildcard);
+    }
+
+    private static boolean isZero(String quality) {
+        try {
+            return Double.parseDouble(quality.trim()) == 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static ByteString gzip(ByteString body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.size() / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(body.toArray());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return ByteString.fromArrayUnsafe(out.toByteArray());
+    }
+
+    // Body of an XML document without its declaration, to be nested in another one
+    private ByteString getXmlElement() {
+        String document = body.utf8String();
+        int declaration = document.indexOf(XML_DECLARATION);
+        String element = (declaration >= 0) ? document.substring(declaration + XML_DECLARATION.length()) : document;
+
+        return ByteString.fromString(element.trim() + "\n");
+    }
+
+    public ByteString getBody() {
+        return body;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    // Tags the cached response depends on
+    public String[] getTags() {
+        return tags;
+    }
+}
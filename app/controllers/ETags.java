@@ -0,0 +1,202 @@
+package controllers;
+
+import models.BaseModel;
+import models.Fieldset;
+import models.Ingredient;
+import models.Recipe;
+import models.RecipeSummary;
+import models.Review;
+import models.Tag;
+import models.User;
+import play.mvc.Http;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Strong entity tags computed from the id and version of every entity shown
+ * by a representation, so they change whenever any of them is updated.
+ *
+ * Tags of single entities start with the version of the entity itself, so
+ * that clients can send them back in If-Match to update it conditionally.
+ */
+final class ETags {
+
+    private ETags() {
+    }
+
+    static String ofRecipe(String format, Recipe recipe) {
+        StringBuilder sb = new StringBuilder(format);
+        appendRecipe(sb, recipe);
+        return versioned(recipe.getVersion(), sb);
+    }
+
+    // Summaries also depend on the properties expanded in them
+    static String ofRecipeSummaries(String format, Integer page, int total, Set<String> expand,
+                                    List<RecipeSummary> recipes) {
+        StringBuilder sb = new StringBuilder(format).append('|').append(page).append('|').append(total)
+                .append('|').append(new TreeSet<>(expand));
+        for (RecipeSummary recipe : recipes) {
+            appendRecipe(sb, recipe.getId(), recipe.getVersion(), recipe.getUser(),
+                    recipe.getIngredients(), recipe.getTags(), recipe.getReviews());
+        }
+        return digest(sb);
+    }
+
+    static String ofUser(String format, User user) {
+        StringBuilder sb = new StringBuilder(format);
+        appendUser(sb, user);
+        return versioned(user.getVersion(), sb);
+    }
+
+    static String ofUsers(String format, Integer page, int total, List<User> users) {
+        StringBuilder sb = new StringBuilder(format).append('|').append(page).append('|').append(total);
+        for (User user : users) {
+            appendUser(sb, user);
+        }
+        return digest(sb);
+    }
+
+    // Sparse representations depend on the fields requested, besides the entities shown
+    static String ofFieldset(String format, Fieldset fields, BaseModel entity) {
+        StringBuilder sb = new StringBuilder(format).append('|').append(fields);
+        appendEntity(sb, entity);
+        return versioned(entity.getVersion(), sb);
+    }
+
+    static String ofFieldsets(String format, Integer page, int total, Fieldset fields,
+                              List<? extends BaseModel> entities) {
+        StringBuilder sb = new StringBuilder(format).append('|').append(page).append('|').append(total)
+                .append('|').append(fields);
+        for (BaseModel entity : entities) {
+            appendEntity(sb, entity);
+        }
+        return digest(sb);
+    }
+
+    // Tag of a collection built from cached responses, derived from their own tags
+    static String ofResponses(String format, Integer page, int total, List<CachedResponse> responses) {
+        StringBuilder sb = new StringBuilder(format).append('|').append(page).append('|').append(total);
+        for (CachedResponse response : responses) {
+            sb.append('|').append(response.getETag());
+        }
+        return digest(sb);
+    }
+
+    /**
+     * Tag of the gzipped variant of a representation, which differs from the
+     * tag of the uncompressed one as required for strong tags, but keeps its
+     * version for If-Match.
+     */
+    static String ofGzipped(String etag) {
+        return etag.substring(0, etag.length() - 1) + "-gzip\"";
+    }
+
+    /**
+     * Whether the If-None-Match header of the request matches the given tag,
+     * using the weak comparison required for conditional GETs.
+     */
+    static boolean matches(Http.Request request, String etag) {
+        Optional<String> header = request.header(Http.HeaderNames.IF_NONE_MATCH);
+        if (!header.isPresent()) {
+            return false;
+        }
+
+        for (String candidate : header.get().split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the entity version required by the If-Match header of the
+     * request, null if there is no such header, or -1 if it does not hold
+     * a version, which no entity can match. If-Match uses the strong
+     * comparison, so weak tags never match either.
+     */
+    static Long getIfMatchVersion(Http.Request request) {
+        Optional<String> header = request.header(Http.HeaderNames.IF_MATCH);
+        if (!header.isPresent() || header.get().trim().equals("*")) {
+            return null;
+        }
+
+        String etag = header.get().trim();
+        if (etag.startsWith("W/")) {
+            return -1L;
+        }
+        etag = etag.replace("\"", "");
+        int end = etag.indexOf('-');
+
+        try {
+            return Long.parseLong((end >= 0) ? etag.substring(0, end) : etag);
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    private static void appendRecipe(StringBuilder sb, Recipe recipe) {
+        appendRecipe(sb, recipe.getId(), recipe.getVersion(), recipe.getUser(),
+                recipe.getIngredients(), recipe.getTags(), recipe.getReviews());
+    }
+
+    // Parts of the recipe left out of its representation are null
+    private static void appendRecipe(StringBuilder sb, Long id, Long version, User user,
+                                     List<Ingredient> ingredients, List<Tag> tags, List<Review> reviews) {
+        sb.append("|r").append(id).append('.').append(version);
+        if (user != null) {
+            appendUser(sb, user);
+        }
+        if (ingredients != null) {
+            for (Ingredient ingredient : ingredients) {
+                sb.append("|i").append(ingredient.getId());
+            }
+        }
+        if (tags != null) {
+            for (Tag tag : tags) {
+                sb.append("|t").append(tag.getId());
+            }
+        }
+        if (reviews != null) {
+            for (Review review : reviews) {
+                sb.append("|v").append(review.getId()).append('.').append(review.getVersion());
+                appendUser(sb, review.getUser());
+            }
+        }
+    }
+
+    private static void appendEntity(StringBuilder sb, BaseModel entity) {
+        sb.append("|e").append(entity.getId()).append('.').append(entity.getVersion());
+    }
+
+    private static void appendUser(StringBuilder sb, User user) {
+        sb.append("|u").append(user.getId()).append('.').append(user.getVersion());
+    }
+
+    private static String versioned(Long version, StringBuilder sb) {
+        return "\"" + version + "-" + hash(sb) + "\"";
+    }
+
+    private static String digest(StringBuilder sb) {
+        return "\"" + hash(sb) + "\"";
+    }
+
+    private static String hash(StringBuilder sb) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256")
+                    .digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(hash).substring(0, 22);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package controllers;
+
+import akka.util.ByteString;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import play.libs.Json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encodings of the JSON representations: JSON itself and its binary
+ * counterparts CBOR and Smile, which hold the same documents written by
+ * Jackson with their own data format, so any format other than XML is
+ * one of these.
+ */
+final class Encodings {
+
+    static final String CBOR_CONTENT_TYPE = "application/cbor";
+    static final String SMILE_CONTENT_TYPE = "application/x-jackson-smile";
+
+    private static final Map<String, ObjectMapper> MAPPERS = new ConcurrentHashMap<>();
+
+    // Every Smile document starts with this header, followed by a byte of flags
+    private static final ByteString SMILE_HEADER = ByteString.fromString(":)\n");
+
+    private Encodings() {
+    }
+
+    /**
+     * Mapper writing the given format, configured as the application one so
+     * that every encoding holds the same documents.
+     */
+    static ObjectMapper getMapper(String format) {
+        switch (format) {
+            case BaseController.CBOR:
+                return MAPPERS.computeIfAbsent(format, f -> withApplicationConfig(new CBORFactory()));
+            case BaseController.SMILE:
+                // Names are never written as references to earlier ones, which
+                // would break once collections are spliced from separate documents
+                return MAPPERS.computeIfAbsent(format, f -> withApplicationConfig(
+                        new SmileFactory().disable(SmileGenerator.Feature.CHECK_SHARED_NAMES)));
+            default:
+                return Json.mapper();
+        }
+    }
+
+    private static ObjectMapper withApplicationConfig(JsonFactory factory) {
+        return new ObjectMapper(factory).findAndRegisterModules()
+                .setConfig(Json.mapper().getSerializationConfig());
+    }
+
+    static String getContentType(String format) {
+        switch (format) {
+            case BaseController.CBOR:
+                return CBOR_CONTENT_TYPE;
+            case BaseController.SMILE:
+                return SMILE_CONTENT_TYPE;
+            case BaseController.XML:
+                return CachedResponse.XML_CONTENT_TYPE;
+            default:
+                return CachedResponse.JSON_CONTENT_TYPE;
+        }
+    }
+
+    static byte[] encode(ObjectWriter writer, Object value) {
+        try {
+            return writer.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Writer of the elements of a collection, which are not documents on their own
+    static ObjectWriter forElements(String format, ObjectWriter writer) {
+        return format.equals(BaseController.SMILE) ? writer.without(SmileGenerator.Feature.WRITE_HEADER) : writer;
+    }
+
+    // Element of a collection from a whole document, dropping what only documents start with
+    static ByteString toElement(String format, ByteString document) {
+        if (format.equals(BaseController.SMILE) && document.take(SMILE_HEADER.size()).equals(SMILE_HEADER)) {
+            return document.drop(SMILE_HEADER.size() + 1);
+        }
+
+        return document;
+    }
+
+    // What goes between two elements of a collection
+    static ByteString getSeparator(String format) {
+        return format.equals(BaseController.JSON) ? ByteString.fromString(",") : ByteString.empty();
+    }
+
+    /**
+     * Opening and closing of a page of a collection, with the elements under
+     * the given name going between both. The total is left out when it is
+     * null.
+     */
+    static ByteString[] getEnvelope(String format, Integer page, Integer total, String name) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("page", page);
+        if (total != null) {
+            fields.put("total", total);
+        }
+
+        return getEnvelope(format, fields, name);
+    }
+
+    // Opening and closing of a page of a collection paginated by keyset, pointing to the next one
+    static ByteString[] getEnvelope(String format, String next, String name) {
+        return getEnvelope(format, Collections.singletonMap("next", next), name);
+    }
+
+    // Object holding the given fields and then the array of elements, split where the elements go
+    private static ByteString[] getEnvelope(String format, Map<String, Object> fields, String name) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int opening;
+        try (JsonGenerator generator = getMapper(format).getFactory().createGenerator(out)) {
+            generator.writeStartObject();
+            for (Map.Entry<String, Object> field : fields.entrySet()) {
+                generator.writeObjectField(field.getKey(), field.getValue());
+            }
+            generator.writeArrayFieldStart(name);
+            generator.flush();
+            opening = out.size();
+            generator.writeEndArray();
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        ByteString envelope = ByteString.fromArray(out.toByteArray());
+        return new ByteString[] { envelope.take(opening), envelope.drop(opening) };
+    }
+}
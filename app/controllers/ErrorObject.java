@@ -13,7 +13,9 @@ public class ErrorObject {
     static final String DUPLICATE_REVIEW = String.valueOf(errorIndex++);
     static final String DUPLICATE_USER = String.valueOf(errorIndex++);
     static final String UPDATE_UNAUTHORIZED = String.valueOf(errorIndex++);
-    static final String DELETE_UNAUTHORIZED = String.valueOf(errorIndex);
+    static final String DELETE_UNAUTHORIZED = String.valueOf(errorIndex++);
+    static final String PRECONDITION_FAILED = String.valueOf(errorIndex++);
+    static final String SERVICE_UNAVAILABLE = String.valueOf(errorIndex);
 
     private String code;
     private String message;
@@ -0,0 +1,68 @@
+package controllers;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.typesafe.config.Config;
+import play.libs.Json;
+import play.mvc.Controller;
+import play.mvc.Result;
+import play.mvc.Security;
+import services.AdmissionControl;
+import services.Bulkhead;
+import services.Bulkheads;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * State of the admission control and of the bulkheads of the database
+ * work, to be collected by monitoring. Only served when enabled in the
+ * configuration, and to authenticated users.
+ */
+@Singleton
+public class MetricsController extends Controller {
+
+    private final AdmissionControl admission;
+    private final Bulkheads bulkheads;
+    private final boolean enabled;
+
+    @Inject
+    public MetricsController(AdmissionControl admission, Bulkheads bulkheads, Config config) {
+        this.admission = admission;
+        this.bulkheads = bulkheads;
+        this.enabled = config.getBoolean("recipedia.metrics.enabled");
+    }
+
+    @Security.Authenticated(Authorization.class)
+    public Result admission() {
+        if (!enabled) {
+            return notFound();
+        }
+
+        ObjectNode json = Json.newObject();
+        json.put("limit", admission.getLimit());
+        json.put("inFlight", admission.getInFlight());
+        json.put("queueingDelayMillis", TimeUnit.NANOSECONDS.toMillis(admission.getQueueingDelay()));
+        json.put("threadsAwaitingConnection", admission.getThreadsAwaitingConnection());
+
+        ObjectNode priorities = json.putObject("priorities");
+        for (AdmissionControl.Priority priority : AdmissionControl.Priority.values()) {
+            ObjectNode counts = priorities.putObject(priority.name().toLowerCase(Locale.ROOT));
+            counts.put("admitted", admission.getAdmittedCount(priority));
+            counts.put("rejected", admission.getRejectedCount(priority));
+        }
+
+        ObjectNode bulkheadsJson = json.putObject("bulkheads");
+        for (Bulkhead bulkhead : bulkheads.getAll()) {
+            ObjectNode state = bulkheadsJson.putObject(bulkhead.getName());
+            state.put("threads", bulkhead.getThreads());
+            state.put("active", bulkhead.getActiveCount());
+            state.put("queued", bulkhead.getQueuedCount());
+            state.put("rejected", bulkhead.getRejectedCount());
+            state.put("queueingDelayMillis", TimeUnit.NANOSECONDS.toMillis(bulkhead.getQueueingDelay()));
+        }
+
+        return ok(json);
+    }
+}
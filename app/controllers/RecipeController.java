@@ -1,161 +1,195 @@
 package controllers;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.ebean.PagedList;
+import models.BaseModel;
+import models.Fieldset;
+import models.Ingredient;
+import models.Keyset;
 import models.Recipe;
+import models.RecipeSummary;
 import models.Review;
+import models.Tag;
 import models.User;
 import play.data.Form;
-import play.libs.Json;
 import play.mvc.Result;
 import play.mvc.Results;
 import play.mvc.Security;
-import play.twirl.api.Content;
+import services.RecipeSearchIndex;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
 
 @Security.Authenticated(Authorization.class)
 public class RecipeController extends BaseController {
 
-    public Result createRecipe() {
+    public CompletionStage<Result> createRecipe() {
         Form<Recipe> form = formFactory
                 .form(Recipe.class)
                 .bindFromRequest();
 
         if (form.hasErrors()) {
-            return Results.badRequest(form.errorsAsJson());
+            return completed(Results.badRequest(form.errorsAsJson()));
         }
 
         Recipe recipe = form.get();
         recipe.setUser(getLoggedUser());
-        if (recipe.validateAndSave()) {
-            return Results.created();
-        } else {
-            return Results.status(409,
-                    new ErrorObject(ErrorObject.DUPLICATE_RECIPE,
-                            getMessage("duplicate_recipe")).toJson());
-        }
+        return onWrite(() -> {
+            if (recipe.validateAndSave()) {
+                searchIndex.index(recipe);
+                invalidateRecipeCache(recipe);
+                return Results.created();
+            } else {
+                return Results.status(409,
+                        new ErrorObject(ErrorObject.DUPLICATE_RECIPE,
+                                getMessage("duplicate_recipe")).toJson());
+            }
+        });
     }
 
-    public Result retrieveRecipe(Long id) {
-        String key = getSingleRecipeCacheKey(id);
-        Recipe recipe = cache.get(key);
-        if (recipe == null) {
-            recipe = Recipe.findById(id);
-            cache.set(key, recipe);
+    public CompletionStage<Result> retrieveRecipe(Long id) {
+        String format = getResponseFormat();
+        if (format == null) {
+            return onRead(() -> (Recipe.findById(id) == null) ? Results.notFound() : Results.status(415));
         }
 
-        if (recipe == null) {
-            return Results.notFound();
+        Fieldset fields = getFieldset(Recipe.class);
+        if (fields == null) {
+            return completed(Results.badRequest());
         }
 
-        if (request().accepts("application/json")) {
-            key = getSingleRecipeResponseCacheKey(id, "json");
-            JsonNode json = cache.get(key);
-            if (json == null) {
-                json = recipe.toJson();
-                cache.set(key, json);
+        if (!fields.isAll()) {
+            return onRead(() -> {
+                Recipe recipe = Recipe.findById(id, fields);
+                return (recipe != null) ? displayFieldset(format, "recipe", fields, recipe) : Results.notFound();
+            });
+        }
+
+        // Cached responses are served right away, with no database work at all
+        String key = getSingleRecipeResponseCacheKey(id, format);
+        CachedResponse cached = cache.get(key);
+        if (cached != null) {
+            return completed(cached.toResult(request()));
+        }
+
+        return onRead(() -> {
+            if (isConditional()) {
+                // Clients holding the current version need no serialization at all
+                Recipe recipe = Recipe.findGraphById(id);
+                if (recipe == null) {
+                    return Results.notFound();
+                }
+                String etag = ETags.ofRecipe(format, recipe);
+                if (ETags.matches(request(), etag)) {
+                    return notModified(etag);
+                }
+
+                // Otherwise the response is rendered from the graph already loaded
+                return cache.getOrElseUpdate(key, () -> renderRecipe(recipe, format), 0, CachedResponse::getTags)
+                        .toResult(request());
             }
-            return Results.ok(json);
-        } else if (request().accepts("application/xml")) {
-            key = getSingleRecipeResponseCacheKey(id, "xml");
-            Content content = cache.get(key);
-            if (content == null) {
-                content = views.xml.recipe.render(recipe);
-                cache.set(key, content);
+
+            CachedResponse response = cache.getOrElseUpdate(key,
+                    () -> {
+                        Recipe recipe = Recipe.findGraphById(id);
+                        return (recipe != null) ? renderRecipe(recipe, format) : null;
+                    }, 0, CachedResponse::getTags, RECIPES_TAG);
+
+            if (response == null) {
+                return Results.notFound();
             }
-            return Results.ok(content);
-        } else {
-            return Results.status(415);
-        }
+
+            return response.toResult(request());
+        });
     }
 
-    public Result updateRecipe(Long id) {
+    public CompletionStage<Result> updateRecipe(Long id) {
         Form<Recipe> form = formFactory
                 .form(Recipe.class)
                 .bindFromRequest();
 
         if (form.hasErrors()) {
-            return Results.badRequest(form.errorsAsJson());
+            return completed(Results.badRequest(form.errorsAsJson()));
         }
 
-        Recipe oldRecipe = Recipe.findById(id);
-        if (oldRecipe == null) {
-            return Results.notFound();
+        Long version = ETags.getIfMatchVersion(request());
+        if (version != null) {
+            Map<String, Object> changes = form.get().getUpdatableValues();
+            return onWrite(() -> updateRecipeIfMatch(id, version, changes));
         }
 
-        User user = getLoggedUser();
-        if (isUserUnauthorized(oldRecipe, user)) {
-            return Results.unauthorized(
-                    new ErrorObject(ErrorObject.UPDATE_UNAUTHORIZED,
-                            getMessage("update_unauthorized")).toJson());
-        }
+        return onWrite(() -> {
+            Recipe oldRecipe = Recipe.findById(id);
+            if (oldRecipe == null) {
+                return Results.notFound();
+            }
 
-        Recipe newRecipe = form.get();
-        newRecipe.setId(id);
-        newRecipe.setUser(user);
-        if (newRecipe.validateAndUpdate()) {
-            deleteRecipeFromCache(id);
-            return Results.ok();
-        } else {
-            return Results.status(409,
-                    new ErrorObject(ErrorObject.DUPLICATE_RECIPE,
-                            getMessage("duplicate_recipe")).toJson());
-        }
-    }
+            User user = getLoggedUser();
+            if (isUserUnauthorized(oldRecipe, user)) {
+                return Results.unauthorized(
+                        new ErrorObject(ErrorObject.UPDATE_UNAUTHORIZED,
+                                getMessage("update_unauthorized")).toJson());
+            }
 
-    public Result partialUpdateRecipe(Long id) {
-        Recipe recipe = Recipe.findById(id);
-        if (recipe == null) {
-            return Results.notFound();
-        }
+            Recipe newRecipe = form.get();
+            newRecipe.setId(id);
+            newRecipe.setUser(user);
+            Map<String, Object> oldValues = oldRecipe.getUpdatableValues();
+            if (newRecipe.validateAndUpdate()) {
+                searchIndex.index(newRecipe);
+                Set<String> changed = new HashSet<>();
+                newRecipe.getUpdatableValues().forEach((property, value) -> {
+                    if (!Objects.equals(value, oldValues.get(property))) {
+                        changed.add(property);
+                    }
+                });
+                invalidateRecipeCache(id, changed);
+                return Results.ok();
+            } else {
+                return Results.status(409,
+                        new ErrorObject(ErrorObject.DUPLICATE_RECIPE,
+                                getMessage("duplicate_recipe")).toJson());
+            }
+        });
+    }
 
-        if (isUserUnauthorized(recipe, getLoggedUser())) {
-            return Results.unauthorized(
-                    new ErrorObject(ErrorObject.UPDATE_UNAUTHORIZED,
-                            getMessage("update_unauthorized")).toJson());
+    public CompletionStage<Result> partialUpdateRecipe(Long id) {
+        Long version = ETags.getIfMatchVersion(request());
+        if (version != null) {
+            Map<String, Object> changes = readRecipeChanges();
+            if (changes.isEmpty()) {
+                return completed(Results.badRequest());
+            }
+            return onWrite(() -> updateRecipeIfMatch(id, version, changes));
         }
 
-        if (request().body() != null && request().body().asJson() != null) {
-            JsonNode body = request().body().asJson();
-            boolean modified = false;
-            if (body.has("name")) {
-                recipe.setName(body.get("name").asText());
-                modified = true;
-            }
-            if (body.has("description")) {
-                recipe.setDescription(body.get("description").asText());
-                modified = true;
-            }
-            if (body.has("difficulty")) {
-                recipe.difficulty = Recipe.Difficulty.valueOf(body.get("difficulty").asText());
-                modified = true;
-            }
-            if (body.has("steps")) {
-                recipe.setSteps(body.get("steps").asText());
-                modified = true;
+        return onWrite(() -> {
+            Recipe recipe = Recipe.findById(id);
+            if (recipe == null) {
+                return Results.notFound();
             }
-            if (body.has("kitchen")) {
-                recipe.setKitchen(body.get("kitchen").asText());
-                modified = true;
-            }
-            if (body.has("rations")) {
-                recipe.setRations(body.get("rations").asInt());
-                modified = true;
-            }
-            if (body.has("time")) {
-                recipe.setTime(body.get("time").asInt());
-                modified = true;
-            }
-            if (body.has("type")) {
-                recipe.type = Recipe.Type.valueOf(body.get("type").asText());
-                modified = true;
+
+            if (isUserUnauthorized(recipe, getLoggedUser())) {
+                return Results.unauthorized(
+                        new ErrorObject(ErrorObject.UPDATE_UNAUTHORIZED,
+                                getMessage("update_unauthorized")).toJson());
             }
 
-            if (modified) {
+            Map<String, Object> changes = readRecipeChanges();
+            if (!changes.isEmpty()) {
+                recipe.setUpdatableValues(changes);
                 if (recipe.validateAndUpdate()) {
-                    deleteRecipeFromCache(id);
+                    searchIndex.index(recipe);
+                    invalidateRecipeCache(id, changes.keySet());
                     return Results.ok();
                 } else {
                     return Results.status(409,
@@ -163,140 +197,195 @@ public class RecipeController extends BaseController {
                                     getMessage("duplicate_recipe")).toJson());
                 }
             }
-        }
 
-        return Results.badRequest();
+            return Results.badRequest();
+        });
     }
 
-    public Result deleteRecipe(Long id) {
-        Recipe recipe = Recipe.findById(id);
-        if (recipe != null) {
-            if (isUserUnauthorized(recipe, getLoggedUser())) {
-                return Results.unauthorized(
-                        new ErrorObject(ErrorObject.DELETE_UNAUTHORIZED,
-                                getMessage("delete_unauthorized")).toJson());
-            }
-            if (!recipe.delete()) {
-                return Results.internalServerError();
+    public CompletionStage<Result> deleteRecipe(Long id) {
+        return onWrite(() -> {
+            Recipe recipe = Recipe.findById(id);
+            if (recipe != null) {
+                if (isUserUnauthorized(recipe, getLoggedUser())) {
+                    return Results.unauthorized(
+                            new ErrorObject(ErrorObject.DELETE_UNAUTHORIZED,
+                                    getMessage("delete_unauthorized")).toJson());
+                }
+                // Read before deleting, since the recipe loses them
+                List<Ingredient> ingredients = new ArrayList<>(recipe.getIngredients());
+                List<Tag> tags = new ArrayList<>(recipe.getTags());
+                if (!recipe.delete()) {
+                    return Results.internalServerError();
+                }
+                searchIndex.remove(id);
+                pantryIndex.remove(id);
+                similarRecipesIndex.remove(id);
+                autocompleteIndex.removeRecipe(ingredients, tags);
+                invalidateRecipeCache(recipe);
             }
-            deleteRecipeFromCache(id);
-        }
 
-        return Results.ok();
+            return Results.ok();
+        });
     }
 
-    public Result retrieveRecipeCollection(Integer page) {
-        String key = getPagedRecipeCollectionCacheKey(page);
-        PagedList<Recipe> list = cache.get(key);
-        if (list == null) {
-            list = Recipe.findAll(page);
-            cache.set(key, list, 2 * 60);
+    public CompletionStage<Result> retrieveRecipeCollection(Integer page) {
+        String format = getResponseFormat();
+        if (format == null) {
+            return completed(Results.status(415));
         }
 
-        return displayRecipes(list, page);
-    }
-
-    public Result addIngredient(Long recipeId, String ingredient) {
-        Recipe recipe = Recipe.findById(recipeId);
-        if (recipe == null) {
-            return Results.notFound();
+        Set<String> expand = getRecipeExpansion();
+        Fieldset fields = getFieldset(Recipe.class);
+        if (expand == null || fields == null) {
+            return completed(Results.badRequest());
         }
 
-        if (isUserUnauthorized(recipe, getLoggedUser())) {
-            return Results.unauthorized(
-                    new ErrorObject(ErrorObject.UPDATE_UNAUTHORIZED,
-                            getMessage("update_unauthorized")).toJson());
-        }
+        return onSearch(() -> {
+            PagedList<Recipe> list = cache.getOrElseUpdate(getPagedRecipeCollectionCacheKey(page),
+                    () -> Recipe.findIds(page), COLLECTION_CACHE_EXPIRATION,
+                    l -> new String[] { RECIPES_TAG });
 
-        if (recipe.validateIngredientAndSave(ingredient)) {
-            deleteRecipeFromCache(recipeId);
-            return Results.created();
-        } else {
-            return Results.status(409,
-                    new ErrorObject(ErrorObject.DUPLICATE_INGREDIENT,
-                            getMessage("duplicate_ingredient")).toJson());
+            return displayRecipes(format,
+                    SearchPage.of(list, getTotalCount(list::getTotalCount, "recipes", RECIPES_TAG)),
+                    page, expand, fields);
+        });
+    }
+
+    public CompletionStage<Result> retrieveRecipeCollectionByCursor(String cursor, String sortBy) {
+        Keyset keyset = getKeyset(cursor, sortBy, Recipe.SORT_PROPERTIES);
+        Set<String> expand = getRecipeExpansion();
+        if (keyset == null || expand == null) {
+            return completed(Results.badRequest());
         }
+
+        return onSearch(() -> displayRecipes(Recipe.findAll(expand, keyset), expand));
     }
 
-    public Result deleteIngredient(Long recipeId, String ingredient) {
-        Recipe recipe = Recipe.findById(recipeId);
-        if (recipe != null) {
+    public CompletionStage<Result> addIngredient(Long recipeId, String ingredient) {
+        return onWrite(() -> {
+            Recipe recipe = Recipe.findById(recipeId);
+            if (recipe == null) {
+                return Results.notFound();
+            }
+
             if (isUserUnauthorized(recipe, getLoggedUser())) {
                 return Results.unauthorized(
                         new ErrorObject(ErrorObject.UPDATE_UNAUTHORIZED,
                                 getMessage("update_unauthorized")).toJson());
             }
-            recipe.deleteIngredientAndSave(ingredient);
-            deleteRecipeFromCache(recipeId);
-        }
 
-        return Results.ok();
+            if (recipe.validateIngredientAndSave(ingredient)) {
+                pantryIndex.addIngredient(recipeId, ingredient);
+                similarRecipesIndex.addIngredient(recipeId, ingredient);
+                autocompleteIndex.addIngredient(Recipe.toCamelCase(ingredient));
+                invalidateRecipeCache(recipeId, Collections.singleton("ingredients"));
+                return Results.created();
+            } else {
+                return Results.status(409,
+                        new ErrorObject(ErrorObject.DUPLICATE_INGREDIENT,
+                                getMessage("duplicate_ingredient")).toJson());
+            }
+        });
     }
 
-    public Result addTag(Long recipeId, String tagName) {
-        Recipe recipe = Recipe.findById(recipeId);
-        if (recipe == null) {
-            return Results.notFound();
-        }
-
-        if (isUserUnauthorized(recipe, getLoggedUser())) {
-            return Results.unauthorized(
-                    new ErrorObject(ErrorObject.UPDATE_UNAUTHORIZED,
-                            getMessage("update_unauthorized")).toJson());
-        }
+    public CompletionStage<Result> deleteIngredient(Long recipeId, String ingredient) {
+        return onWrite(() -> {
+            Recipe recipe = Recipe.findById(recipeId);
+            if (recipe != null) {
+                if (isUserUnauthorized(recipe, getLoggedUser())) {
+                    return Results.unauthorized(
+                            new ErrorObject(ErrorObject.UPDATE_UNAUTHORIZED,
+                                    getMessage("update_unauthorized")).toJson());
+                }
+                if (recipe.deleteIngredientAndSave(ingredient)) {
+                    pantryIndex.removeIngredient(recipeId, ingredient);
+                    similarRecipesIndex.removeIngredient(recipeId, ingredient);
+                    autocompleteIndex.removeIngredient(ingredient);
+                    invalidateRecipeCache(recipeId, Collections.singleton("ingredients"));
+                }
+            }
 
-        if (recipe.validateTagAndSave(tagName)) {
-            deleteRecipeFromCache(recipeId);
-            return Results.created();
-        } else {
-            return Results.status(409,
-                    new ErrorObject(ErrorObject.DUPLICATE_TAG,
-                            getMessage("duplicate_tag")).toJson());
-        }
+            return Results.ok();
+        });
     }
 
-    public Result deleteTag(Long recipeId, String tagName) {
-        Recipe recipe = Recipe.findById(recipeId);
-        if (recipe != null) {
+    public CompletionStage<Result> addTag(Long recipeId, String tagName) {
+        return onWrite(() -> {
+            Recipe recipe = Recipe.findById(recipeId);
+            if (recipe == null) {
+                return Results.notFound();
+            }
+
             if (isUserUnauthorized(recipe, getLoggedUser())) {
                 return Results.unauthorized(
                         new ErrorObject(ErrorObject.UPDATE_UNAUTHORIZED,
                                 getMessage("update_unauthorized")).toJson());
             }
-            recipe.deleteTagAndSave(tagName);
-            deleteRecipeFromCache(recipeId);
-        }
 
-        return Results.ok();
+            if (recipe.validateTagAndSave(tagName)) {
+                pantryIndex.addTag(recipeId, tagName);
+                similarRecipesIndex.addTag(recipeId, tagName);
+                autocompleteIndex.addTag(Recipe.toCamelCase(tagName));
+                invalidateRecipeCache(recipeId, Collections.singleton("tags"));
+                return Results.created();
+            } else {
+                return Results.status(409,
+                        new ErrorObject(ErrorObject.DUPLICATE_TAG,
+                                getMessage("duplicate_tag")).toJson());
+            }
+        });
     }
 
-    public Result addReview(Long id) {
+    public CompletionStage<Result> deleteTag(Long recipeId, String tagName) {
+        return onWrite(() -> {
+            Recipe recipe = Recipe.findById(recipeId);
+            if (recipe != null) {
+                if (isUserUnauthorized(recipe, getLoggedUser())) {
+                    return Results.unauthorized(
+                            new ErrorObject(ErrorObject.UPDATE_UNAUTHORIZED,
+                                    getMessage("update_unauthorized")).toJson());
+                }
+                if (recipe.deleteTagAndSave(tagName)) {
+                    pantryIndex.removeTag(recipeId, tagName);
+                    similarRecipesIndex.removeTag(recipeId, tagName);
+                    autocompleteIndex.removeTag(tagName);
+                    invalidateRecipeCache(recipeId, Collections.singleton("tags"));
+                }
+            }
+
+            return Results.ok();
+        });
+    }
+
+    public CompletionStage<Result> addReview(Long id) {
         Form<Review> form = formFactory
                 .form(Review.class)
                 .bindFromRequest();
 
         if (form.hasErrors()) {
-            return Results.badRequest(form.errorsAsJson());
-        }
-
-        Recipe recipe = Recipe.findById(id);
-        if (recipe == null) {
-            return Results.notFound();
+            return completed(Results.badRequest(form.errorsAsJson()));
         }
 
         Review review = form.get();
         review.setUser(getLoggedUser());
-        if (recipe.addReview(review)) {
-            deleteRecipeFromCache(id);
-            return Results.created();
-        } else {
-            return Results.status(409,
-                    new ErrorObject(ErrorObject.DUPLICATE_REVIEW,
-                            getMessage("duplicate_review")).toJson());
-        }
+        return onWrite(() -> {
+            Recipe recipe = Recipe.findById(id);
+            if (recipe == null) {
+                return Results.notFound();
+            }
+
+            if (recipe.addReview(review)) {
+                invalidateRecipeCache(id, Collections.singleton("reviews"));
+                return Results.created();
+            } else {
+                return Results.status(409,
+                        new ErrorObject(ErrorObject.DUPLICATE_REVIEW,
+                                getMessage("duplicate_review")).toJson());
+            }
+        });
     }
 
-    public Result searchRecipes() {
+    public CompletionStage<Result> searchRecipes() {
         String name = request().getQueryString("name");
         String description = request().getQueryString("description");
         String difficulty = request().getQueryString("difficulty");
@@ -307,31 +396,270 @@ public class RecipeController extends BaseController {
         String type = request().getQueryString("type");
         String ingredient = request().getQueryString("ingredient");
         String tag = request().getQueryString("tag");
+        String minRating = request().getQueryString("minRating");
         String sortBy = request().getQueryString("sortBy");
+        String text = request().getQueryString("q");
         String pageRequested = request().getQueryString("page");
         Integer page = (pageRequested != null) ? Integer.parseInt(pageRequested) : 0;
 
-        PagedList<Recipe> recipes = Recipe.findBy(name, description, difficulty, userId, kitchen,
-                (rations != null) ? rations.split(":") : null, (time != null) ? time.split(":") : null,
-                type, ingredient, tag, (sortBy != null) ? sortBy.split(":") : null, page);
+        String format = getResponseFormat();
+        if (format == null) {
+            return completed(Results.status(415));
+        }
+
+        Set<String> expand = getRecipeExpansion();
+        Fieldset fields = getFieldset(Recipe.class);
+        if (expand == null || fields == null || (minRating != null && !isRating(minRating))) {
+            return completed(Results.badRequest());
+        }
+
+        if (text != null) {
+            return onSearch(() -> {
+                // Full text search ranked by relevance, and narrowed down by the rest of the filters in a
+                // single query over the most relevant matches only. Every ranked match is cached at once,
+                // since it is already in memory and pages are cheap to cut
+                SearchPage matches = getSearchPage("recipes-text", counted -> {
+                    Map<Long, Double> scores = searchIndex.score(text);
+                    List<Long> ranked = RecipeSearchIndex.rank(scores);
+                    boolean filtered = name != null || description != null || difficulty != null || userId != null
+                            || kitchen != null || rations != null || time != null || type != null
+                            || ingredient != null || tag != null || minRating != null;
+                    if (!filtered) {
+                        return new SearchPage(ranked, scores.size());
+                    }
+
+                    Set<Long> matching = Recipe.findIdsBy(name, description, difficulty, userId, kitchen,
+                            (rations != null) ? rations.split(":") : null,
+                            (time != null) ? time.split(":") : null, type, ingredient, tag, minRating, ranked);
+                    ranked.retainAll(matching);
+                    return new SearchPage(ranked, ranked.size());
+                }, getRecipeSearchTags(minRating, null), "page", "total", "expand", "fields");
+
+                return displayRecipes(format, SearchPage.of(matches.getIds(), matches.getTotal(), page,
+                        isTotalRequested()), page, expand, fields);
+            });
+        }
+
+        String cursor = request().getQueryString("cursor");
+        if (cursor != null) {
+            Keyset keyset = getKeyset(cursor, sortBy, Recipe.SORT_PROPERTIES);
+            if (keyset == null) {
+                return completed(Results.badRequest());
+            }
+            return onSearch(() -> displayRecipes(Recipe.findBy(name, description, difficulty, userId, kitchen,
+                    (rations != null) ? rations.split(":") : null, (time != null) ? time.split(":") : null,
+                    type, ingredient, tag, minRating, expand, keyset), expand));
+        }
+
+        return onSearch(() -> {
+            SearchPage recipes = getSearchPage("recipes-search", counted -> SearchPage.of(
+                    Recipe.findIdsBy(name, description, difficulty, userId, kitchen,
+                            (rations != null) ? rations.split(":") : null, (time != null) ? time.split(":") : null,
+                            type, ingredient, tag, minRating, (sortBy != null) ? sortBy.split(":") : null, page),
+                    counted), getRecipeSearchTags(minRating, (sortBy != null) ? sortBy.split(":") : null),
+                    "total", "expand", "fields");
+
+            return displayRecipes(format, recipes, page, expand, fields);
+        });
+    }
+
+    /**
+     * Recipes sharing the most ingredients and tags with the given one.
+     */
+    public CompletionStage<Result> retrieveSimilarRecipes(Long id, Integer limit) {
+        String format = getResponseFormat();
+        if (format == null) {
+            return completed(Results.status(415));
+        }
+
+        Set<String> expand = getRecipeExpansion();
+        Fieldset fields = getFieldset(Recipe.class);
+        if (expand == null || fields == null) {
+            return completed(Results.badRequest());
+        }
+
+        return onSearch(() -> {
+            if (Recipe.findById(id) == null) {
+                return Results.notFound();
+            }
+
+            List<Long> ids = similarRecipesIndex.similar(id, Math.max(0, Math.min(limit, BaseModel.PAGE_SIZE)));
+            return displayRecipes(format, SearchPage.of(ids, 0, isTotalRequested()), 0, expand, fields);
+        });
+    }
+
+    public CompletionStage<Result> autocompleteIngredients(String prefix, Integer limit) {
+        return onAutocompleteIndex(() -> displaySuggestions(autocompleteIndex.completeIngredient(prefix, limit)));
+    }
+
+    public CompletionStage<Result> autocompleteTags(String prefix, Integer limit) {
+        return onAutocompleteIndex(() -> displaySuggestions(autocompleteIndex.completeTag(prefix, limit)));
+    }
+
+    // Lookups are answered right away once the index is built, until then they wait for it on the bulkhead
+    private CompletionStage<Result> onAutocompleteIndex(Supplier<Result> lookup) {
+        return autocompleteIndex.isBuilt() ? completed(lookup.get()) : onSearch(lookup);
+    }
+
+    /**
+     * Recipes that can be cooked with the ingredients of the pantry, missing
+     * at most the given number of them, and having all the given tags.
+     */
+    public CompletionStage<Result> searchRecipesByPantry() {
+        String ingredients = request().getQueryString("ingredients");
+        String tags = request().getQueryString("tags");
+        Integer missing = getNonNegativeParameter("missing", 0);
+        Integer page = getNonNegativeParameter("page", 0);
+
+        if (ingredients == null || ingredients.trim().isEmpty() || missing == null || page == null) {
+            return completed(Results.badRequest());
+        }
+
+        String format = getResponseFormat();
+        if (format == null) {
+            return completed(Results.status(415));
+        }
+
+        Set<String> expand = getRecipeExpansion();
+        Fieldset fields = getFieldset(Recipe.class);
+        if (expand == null || fields == null) {
+            return completed(Results.badRequest());
+        }
+
+        // The first search builds the index from the database, so it runs on the bulkhead too
+        return onSearch(() -> {
+            List<Long> ids = pantryIndex.search(Arrays.asList(ingredients.split(",")),
+                    (tags != null) ? Arrays.asList(tags.split(",")) : Collections.emptyList(), missing);
+            return displayRecipes(format, SearchPage.of(ids, page, isTotalRequested()), page, expand, fields);
+        });
+    }
 
-        return displayRecipes(recipes, page);
+    // Ratings go from zero to five stars, like those of the reviews
+    private static boolean isRating(String value) {
+        try {
+            double rating = Double.parseDouble(value.trim());
+            return rating >= 0 && rating <= 5;
+        } catch (NumberFormatException e) {
+            return false;
+        }
     }
 
-    public static Result displayRecipes(PagedList<Recipe> list, Integer page) {
-        List<Recipe> recipes = list.getList();
-
-        if (request().accepts("application/json")) {
-            ObjectNode json = Json.newObject();
-            json.put("page", page);
-            json.put("total", list.getTotalCount());
-            json.putPOJO("recipes", recipes);
-            return Results.ok(json);
-        } else if (request().accepts("application/xml")) {
-            return Results.ok(views.xml.recipes.render(page, list.getTotalCount(), recipes));
+    private static Result displaySuggestions(List<String> suggestions) {
+        String format = getResponseFormat();
+        if (format == null) {
+            return Results.status(415);
+        }
+
+        if (!format.equals(XML)) {
+            return Results.ok(Encodings.encode(Encodings.getMapper(format).writer(),
+                    Collections.singletonMap("suggestions", suggestions))).as(Encodings.getContentType(format));
         } else {
+            return Results.ok(views.xml.suggestions.render(suggestions));
+        }
+    }
+
+    // Conditional update, which only reads the recipe back when it fails
+    private Result updateRecipeIfMatch(Long id, Long version, Map<String, Object> changes) {
+        User user = getLoggedUser();
+        if (changes.containsKey("name")
+                && Recipe.isNameTaken((String) changes.get("name"), user.getId(), id)) {
+            return Results.status(409,
+                    new ErrorObject(ErrorObject.DUPLICATE_RECIPE,
+                            getMessage("duplicate_recipe")).toJson());
+        }
+
+        if (!Recipe.updateIfVersion(id, user.getId(), version, changes)) {
+            Recipe recipe = Recipe.findById(id);
+            if (recipe == null) {
+                return Results.notFound();
+            }
+            if (isUserUnauthorized(recipe, user)) {
+                return Results.unauthorized(
+                        new ErrorObject(ErrorObject.UPDATE_UNAUTHORIZED,
+                                getMessage("update_unauthorized")).toJson());
+            }
+            return Results.status(412,
+                    new ErrorObject(ErrorObject.PRECONDITION_FAILED,
+                            getMessage("precondition_failed")).toJson());
+        }
+
+        searchIndex.update(id, changes);
+        invalidateRecipeCache(id, changes.keySet());
+        return Results.ok();
+    }
+
+    private Map<String, Object> readRecipeChanges() {
+        Map<String, Object> changes = new LinkedHashMap<>();
+        if (request().body() == null || request().body().asJson() == null) {
+            return changes;
+        }
+
+        JsonNode body = request().body().asJson();
+        if (body.has("name")) {
+            changes.put("name", body.get("name").asText());
+        }
+        if (body.has("description")) {
+            changes.put("description", body.get("description").asText());
+        }
+        if (body.has("difficulty")) {
+            changes.put("difficulty", Recipe.Difficulty.valueOf(body.get("difficulty").asText()));
+        }
+        if (body.has("steps")) {
+            changes.put("steps", body.get("steps").asText());
+        }
+        if (body.has("kitchen")) {
+            changes.put("kitchen", body.get("kitchen").asText());
+        }
+        if (body.has("rations")) {
+            changes.put("rations", body.get("rations").asInt());
+        }
+        if (body.has("time")) {
+            changes.put("time", body.get("time").asInt());
+        }
+        if (body.has("type")) {
+            changes.put("type", Recipe.Type.valueOf(body.get("type").asText()));
+        }
+
+        return changes;
+    }
+
+    // Recipes loaded as summaries are shown as such, unless everything was expanded
+    public static Result displayRecipes(Keyset.Page<Recipe> list, Set<String> expand) {
+        String format = getResponseFormat();
+        if (format == null) {
             return Results.status(415);
         }
+
+        if (expand.contains(Recipe.EXPAND_ALL)) {
+            if (!format.equals(XML)) {
+                return Results.ok()
+                        .chunked(StreamedCollection.encoded(format, Encodings.getMapper(format).writer(),
+                                list.getNext(), "recipes", list.getList()))
+                        .as(Encodings.getContentType(format));
+            } else {
+                return Results.ok()
+                        .chunked(StreamedCollection.xml(list.getNext(), "recipes", list.getList(),
+                                views.xml._recipe::render))
+                        .as(CachedResponse.XML_CONTENT_TYPE);
+            }
+        }
+
+        List<RecipeSummary> summaries = new ArrayList<>(list.getList().size());
+        for (Recipe recipe : list.getList()) {
+            summaries.add(recipe.toSummary(expand));
+        }
+
+        if (!format.equals(XML)) {
+            return Results.ok()
+                    .chunked(StreamedCollection.encoded(format, Encodings.getMapper(format).writer(),
+                            list.getNext(), "recipes", summaries))
+                    .as(Encodings.getContentType(format));
+        } else {
+            return Results.ok()
+                    .chunked(StreamedCollection.xml(list.getNext(), "recipes", summaries,
+                            views.xml._recipeSummary::render))
+                    .as(CachedResponse.XML_CONTENT_TYPE);
+        }
     }
 
     // A user can just modify its own recipes
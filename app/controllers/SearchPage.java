@@ -0,0 +1,57 @@
+package controllers;
+
+import io.ebean.PagedList;
+import models.BaseModel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ids of the entities in a page of search results, and the total number of
+ * matches if it was counted, as cached for repeated searches.
+ */
+public class SearchPage {
+
+    private final List<Long> ids;
+    private final Integer total;
+
+    SearchPage(List<Long> ids, Integer total) {
+        this.ids = ids;
+        this.total = total;
+    }
+
+    static SearchPage of(PagedList<? extends BaseModel> list, boolean counted) {
+        return of(list, counted ? list.getTotalCount() : null);
+    }
+
+    // Page of a list of entities, with a total computed elsewhere
+    static SearchPage of(PagedList<? extends BaseModel> list, Integer total) {
+        List<Long> ids = new ArrayList<>(list.getList().size());
+        for (BaseModel model : list.getList()) {
+            ids.add(model.getId());
+        }
+
+        return new SearchPage(ids, total);
+    }
+
+    // Page of a list of ids holding every match
+    static SearchPage of(List<Long> ids, int page, boolean counted) {
+        return of(ids, ids.size(), page, counted);
+    }
+
+    // Page of a list of ids holding the first matches of the given total
+    static SearchPage of(List<Long> ids, int total, int page, boolean counted) {
+        int from = Math.min(BaseModel.PAGE_SIZE * page, ids.size());
+        int to = Math.min(from + BaseModel.PAGE_SIZE, ids.size());
+
+        return new SearchPage(ids.subList(from, to), counted ? total : null);
+    }
+
+    public List<Long> getIds() {
+        return ids;
+    }
+
+    public Integer getTotal() {
+        return total;
+    }
+}
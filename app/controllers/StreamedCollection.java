@@ -0,0 +1,70 @@
+package controllers;
+
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import play.twirl.api.Content;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Bodies of collection responses written element by element as the client
+ * reads them, to be sent chunked, so that no tree nor buffer of the whole
+ * document is ever built. Each element is serialized only when the
+ * previous one has been written out.
+ */
+final class StreamedCollection {
+
+    private StreamedCollection() {
+    }
+
+    /**
+     * Page of a collection in JSON or any of its binary encodings, in the
+     * same shape as the cached ones, with every element written by the
+     * given writer. The total is left out when it is null.
+     */
+    static Source<ByteString, ?> encoded(String format, ObjectWriter writer, Integer page, Integer total,
+                                         String name, List<?> elements) {
+        return document(format, writer, Encodings.getEnvelope(format, page, total, name), elements);
+    }
+
+    // Encoded page of a collection paginated by keyset, pointing to the next one
+    static Source<ByteString, ?> encoded(String format, ObjectWriter writer, String next, String name,
+                                         List<?> elements) {
+        return document(format, writer, Encodings.getEnvelope(format, next, name), elements);
+    }
+
+    private static Source<ByteString, ?> document(String format, ObjectWriter writer, ByteString[] envelope,
+                                                   List<?> elements) {
+        ObjectWriter elementWriter = Encodings.forElements(format, writer);
+        return Source.from(elements)
+                .map(element -> ByteString.fromArrayUnsafe(elementWriter.writeValueAsBytes(element)))
+                .intersperse(envelope[0], Encodings.getSeparator(format), envelope[1]);
+    }
+
+    /**
+     * XML page of a collection, in the same shape as the cached ones, with
+     * every element rendered on its own by its partial template. The total
+     * is left out when it is null.
+     */
+    static <T> Source<ByteString, ?> xml(Integer page, Integer total, String name, List<T> elements,
+                                         Function<T, Content> render) {
+        return document("<page>" + page + "</page>\n" + ((total != null) ? "<total>" + total + "</total>\n" : ""),
+                name, elements, render);
+    }
+
+    // XML page of a collection paginated by keyset, pointing to the next one
+    static <T> Source<ByteString, ?> xml(String next, String name, List<T> elements, Function<T, Content> render) {
+        return document("<next>" + ((next != null) ? next : "") + "</next>\n", name, elements, render);
+    }
+
+    private static <T> Source<ByteString, ?> document(String header, String name, List<T> elements,
+                                                      Function<T, Content> render) {
+        return Source.from(elements)
+                .map(element -> ByteString.fromString("    " + render.apply(element).body().trim() + "\n"))
+                .intersperse(ByteString.fromString(CachedResponse.XML_DECLARATION + "\n\n" + header
+                                + "<" + name + ">\n"),
+                        ByteString.empty(), ByteString.fromString("</" + name + ">"));
+    }
+}
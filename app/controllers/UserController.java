@@ -1,211 +1,419 @@
 package controllers;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import io.ebean.PagedList;
+import models.Fieldset;
+import models.Ingredient;
+import models.Keyset;
 import models.Recipe;
+import models.Tag;
 import models.User;
 import play.data.Form;
-import play.libs.Json;
 import play.mvc.Result;
 import play.mvc.Results;
 import play.mvc.Security;
-import play.twirl.api.Content;
+import services.SignedTokens;
+import services.TokenCache;
 
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
 
 public class UserController extends BaseController {
 
-    public Result createUser() {
+    @Inject
+    TokenCache tokenCache;
+
+    @Inject
+    SignedTokens signedTokens;
+
+    public CompletionStage<Result> createUser() {
         Form<User> form = formFactory
                 .form(User.class)
                 .bindFromRequest();
 
         if (form.hasErrors()) {
-            return Results.badRequest(form.errorsAsJson());
+            return completed(Results.badRequest(form.errorsAsJson()));
         }
 
         User user = form.get();
-        if (user.validateAndSave()) {
-            return Results
-                    .created()
-                    .withHeader("Authorization", user.getToken().getToken());
-        } else {
-            return Results.status(409,
-                    new ErrorObject(ErrorObject.DUPLICATE_USER,
-                            getMessage("duplicate_user")).toJson());
-        }
+        return onWrite(() -> {
+            if (user.validateAndSave()) {
+                cache.invalidate(USERS_TAG);
+                return Results
+                        .created()
+                        .withHeader("Authorization", signedTokens.tokenFor(user));
+            } else {
+                return Results.status(409,
+                        new ErrorObject(ErrorObject.DUPLICATE_USER,
+                                getMessage("duplicate_user")).toJson());
+            }
+        });
     }
 
     @Security.Authenticated(Authorization.class)
-    public Result retrieveUser(Long id) {
-        String key = getSingleUserCacheKey(id);
-        User user = cache.get(key);
-        if (user == null) {
-            user = User.findById(id);
-            cache.set(key, user);
-        }
-
-        if (user == null) {
-            return Results.notFound();
-        }
-
-        if (request().accepts("application/json")) {
-            key = getSingleUserResponseCacheKey(id, "json");
-            JsonNode json = cache.get(key);
-            if (json == null) {
-                json = user.toJson();
-                cache.set(key, json);
-            }
-            return Results.ok(json);
-        } else if (request().accepts("application/xml"))  {
-            key = getSingleUserResponseCacheKey(id, "xml");
-            Content content = cache.get(key);
-            if (content == null) {
-                content = views.xml.user.render(user);
-                cache.set(key, content);
-            }
-            return Results.ok(content);
-        } else {
-            return Results.status(415);
+    public CompletionStage<Result> retrieveUser(Long id) {
+        String format = getResponseFormat();
+        if (format == null) {
+            return onRead(() -> (User.findById(id) == null) ? Results.notFound() : Results.status(415));
+        }
+
+        Fieldset fields = getFieldset(User.class);
+        if (fields == null) {
+            return completed(Results.badRequest());
+        }
+
+        if (!fields.isAll()) {
+            return onRead(() -> {
+                User user = User.findById(id, fields);
+                return (user != null) ? displayFieldset(format, "user", fields, user) : Results.notFound();
+            });
         }
+
+        // Cached responses are served right away, with no database work at all
+        String key = getSingleUserResponseCacheKey(id, format);
+        CachedResponse cached = cache.get(key);
+        if (cached != null) {
+            return completed(cached.toResult(request()));
+        }
+
+        return onRead(() -> {
+            if (isConditional()) {
+                User user = User.findById(id);
+                if (user == null) {
+                    return Results.notFound();
+                }
+                String etag = ETags.ofUser(format, user);
+                if (ETags.matches(request(), etag)) {
+                    return notModified(etag);
+                }
+
+                // Otherwise the response is rendered from the user already loaded
+                return cache.getOrElseUpdate(key, () -> renderUser(user, format), 0, CachedResponse::getTags)
+                        .toResult(request());
+            }
+
+            CachedResponse response = cache.getOrElseUpdate(key,
+                    () -> {
+                        User user = User.findById(id);
+                        return (user != null) ? renderUser(user, format) : null;
+                    }, 0, CachedResponse::getTags, USERS_TAG);
+
+            if (response == null) {
+                return Results.notFound();
+            }
+
+            return response.toResult(request());
+        });
     }
 
     @Security.Authenticated(Authorization.class)
-    public Result updateUser() {
+    public CompletionStage<Result> updateUser() {
         Form<User> form = formFactory
                 .form(User.class)
                 .bindFromRequest();
 
         if (form.hasErrors()) {
-            return Results.badRequest(form.errorsAsJson());
+            return completed(Results.badRequest(form.errorsAsJson()));
         }
 
         Long id = getLoggedUser().getId();
         User newUser = form.get();
         newUser.setId(id);
-        if (newUser.validateAndUpdate()) {
-            deleteUserFromCache(id);
-            return Results.ok();
-        } else {
-            return Results.status(409,
-                    new ErrorObject(ErrorObject.DUPLICATE_USER,
-                            getMessage("duplicate_user")).toJson());
-        }
+
+        Long version = ETags.getIfMatchVersion(request());
+        return onWrite(() -> {
+            if (version != null) {
+                if (User.isDniTaken(newUser.getDni(), id)) {
+                    return Results.status(409,
+                            new ErrorObject(ErrorObject.DUPLICATE_USER,
+                                    getMessage("duplicate_user")).toJson());
+                }
+                if (!newUser.updateIfVersion(version)) {
+                    return Results.status(412,
+                            new ErrorObject(ErrorObject.PRECONDITION_FAILED,
+                                    getMessage("precondition_failed")).toJson());
+                }
+                deleteUserFromCache(id);
+                return Results.ok();
+            }
+
+            if (newUser.validateAndUpdate()) {
+                deleteUserFromCache(id);
+                return Results.ok();
+            } else {
+                return Results.status(409,
+                        new ErrorObject(ErrorObject.DUPLICATE_USER,
+                                getMessage("duplicate_user")).toJson());
+            }
+        });
     }
 
     @Security.Authenticated(Authorization.class)
-    public Result partialUpdateUser() {
+    public CompletionStage<Result> partialUpdateUser() {
         if (request().body() != null && request().body().asJson() != null) {
-            User user = getLoggedUser();
+            Long id = getLoggedUser().getId();
             JsonNode body = request().body().asJson();
-            boolean modified = false;
-            if (body.has("name")) {
-                user.setName(body.get("name").asText());
-                modified = true;
-            }
-            if (body.has("city")) {
-                user.setCity(body.get("city").asText());
-                modified = true;
+            if (body.has("name") || body.has("city")) {
+                return onWrite(() -> {
+                    User user = User.findById(id);
+                    if (user == null) {
+                        return Results.notFound();
+                    }
+                    if (body.has("name")) {
+                        user.setName(body.get("name").asText());
+                    }
+                    if (body.has("city")) {
+                        user.setCity(body.get("city").asText());
+                    }
+
+                    if (user.validateAndUpdate()) {
+                        deleteUserFromCache(id);
+                        return Results.ok();
+                    } else {
+                        return Results.status(409,
+                                new ErrorObject(ErrorObject.DUPLICATE_USER,
+                                        getMessage("duplicate_user")).toJson());
+                    }
+                });
             }
+        }
 
-            if (modified) {
-                if (user.validateAndUpdate()) {
-                    deleteUserFromCache(user.getId());
-                    return Results.ok();
-                } else {
-                    return Results.status(409,
-                            new ErrorObject(ErrorObject.DUPLICATE_USER,
-                                    getMessage("duplicate_user")).toJson());
-                }
+        return completed(Results.badRequest());
+    }
+
+    @Security.Authenticated(Authorization.class)
+    public CompletionStage<Result> deleteUser() {
+        Long id = getLoggedUser().getId();
+        return onWrite(() -> {
+            // Reload the user so that its recipes are not taken from a cached instance
+            User user = User.findById(id);
+
+            // Read before deleting, since the recipes lose them
+            List<Ingredient> ingredients = new ArrayList<>();
+            List<Tag> tags = new ArrayList<>();
+            for (Recipe recipe : user.getRecipes()) {
+                ingredients.addAll(recipe.getIngredients());
+                tags.addAll(recipe.getTags());
+            }
+            List<Long> rated = user.deleteWithRatings();
+            if (rated == null) {
+                return Results.internalServerError();
+            }
+            // Only once deleted, so that no concurrent request caches its tokens again
+            tokenCache.evictUser(id);
+            signedTokens.revoke(id);
+            autocompleteIndex.removeRecipe(ingredients, tags);
+
+            deleteUserFromCache(user.getId());
+            deleteUserRecipesFromCache(user);
+            for (Long recipeId : rated) {
+                invalidateRecipeCache(recipeId, Collections.singleton("reviews"));
             }
-        }
 
-        return Results.badRequest();
+            return Results.ok();
+        });
     }
 
     @Security.Authenticated(Authorization.class)
-    public Result deleteUser() {
-        User user = getLoggedUser();
-        deleteUserFromCache(user.getId());
-        deleteUserRecipesFromCache(user);
-        if (!user.delete()) {
-            return Results.internalServerError();
+    public CompletionStage<Result> retrieveUserCollection(Integer page) {
+        Fieldset fields = getFieldset(User.class);
+        if (fields == null) {
+            return completed(Results.badRequest());
+        }
+
+        if (!fields.isAll()) {
+            String format = getResponseFormat();
+            if (format == null) {
+                return completed(Results.status(415));
+            }
+            return onSearch(() -> {
+                PagedList<User> list = User.findAll(page, fields);
+                return displayFieldsets(format, "users", "user", page,
+                        getTotalCount(list::getTotalCount, "users", USERS_TAG), fields, list.getList());
+            });
         }
 
-        return Results.ok();
+        return onSearch(() -> {
+            PagedList<User> list = cache.getOrElseUpdate(getPagedUserCollectionCacheKey(page),
+                    () -> User.findAll(page), COLLECTION_CACHE_EXPIRATION, l -> new String[] { USERS_TAG });
+
+            return displayUsers(list.getList(),
+                    getTotalCount(list::getTotalCount, "users", USERS_TAG), page);
+        });
     }
 
     @Security.Authenticated(Authorization.class)
-    public Result retrieveUserCollection(Integer page) {
-        String key = getPagedUserCollectionCacheKey(page);
-        PagedList<User> list = cache.get(key);
-        if (list == null) {
-            list = User.findAll(page);
-            cache.set(key, list, 2 * 60);
+    public CompletionStage<Result> retrieveUserCollectionByCursor(String cursor, String sortBy) {
+        Keyset keyset = getKeyset(cursor, sortBy, User.SORT_PROPERTIES);
+        if (keyset == null) {
+            return completed(Results.badRequest());
         }
 
-        return displayUsers(list, page);
+        return onSearch(() -> displayUsers(User.findAll(keyset)));
     }
 
     @Security.Authenticated(Authorization.class)
-    public Result searchUsers() {
+    public CompletionStage<Result> searchUsers() {
         String name = request().getQueryString("name");
         String city = request().getQueryString("city");
         String sortBy = request().getQueryString("sortBy");
         String pageRequested = request().getQueryString("page");
         Integer page = (pageRequested != null) ? Integer.parseInt(pageRequested) : 0;
 
-        PagedList<User> users = User.findBy(name, city,
-                (sortBy != null) ? sortBy.split(":") : null, page);
+        String cursor = request().getQueryString("cursor");
+        if (cursor != null) {
+            Keyset keyset = getKeyset(cursor, sortBy, User.SORT_PROPERTIES);
+            if (keyset == null) {
+                return completed(Results.badRequest());
+            }
+            return onSearch(() -> displayUsers(User.findBy(name, city, keyset)));
+        }
+
+        String format = getResponseFormat();
+        if (format == null) {
+            return completed(Results.status(415));
+        }
+
+        Fieldset fields = getFieldset(User.class);
+        if (fields == null) {
+            return completed(Results.badRequest());
+        }
+
+        return onSearch(() -> {
+            SearchPage users = getSearchPage("users-search", counted -> SearchPage.of(
+                    User.findIdsBy(name, city, (sortBy != null) ? sortBy.split(":") : null, page), counted),
+                    new String[] { USERS_TAG }, "total", "fields");
+
+            if (!fields.isAll()) {
+                return displayFieldsets(format, "users", "user", page, users.getTotal(), fields,
+                        User.findByIds(users.getIds(), fields));
+            }
 
-        return displayUsers(users, page);
+            return displayCachedCollection("users", format, users, page,
+                    id -> getSingleUserResponseCacheKey(id, format),
+                    ids -> {
+                        Map<Long, CachedResponse> responses = new HashMap<>();
+                        for (User user : User.findByIds(ids)) {
+                            responses.put(user.getId(), renderUser(user, format));
+                        }
+                        return responses;
+                    });
+        });
     }
 
     @Security.Authenticated(Authorization.class)
-    public Result retrieveUserRecipes(Long id, Integer page) {
-        if (User.findById(id) == null) {
-            return Results.notFound();
-        }
+    public CompletionStage<Result> retrieveUserRecipes(Long id, Integer page) {
+        return onSearch(() -> {
+            String format = getResponseFormat();
+            if (format == null) {
+                return Results.status(415);
+            }
 
-        String key = getPagedUserRecipeCollectionCacheKey(id, page);
-        PagedList<Recipe> list = cache.get(key);
-        if (list == null) {
-            list = Recipe.findByUser(id, page);
-            cache.set(key, list, 2 * 60);
-        }
+            Set<String> expand = getRecipeExpansion();
+            Fieldset fields = getFieldset(Recipe.class);
+            if (expand == null || fields == null) {
+                return Results.badRequest();
+            }
+
+            if (!User.exists(id)) {
+                return Results.notFound();
+            }
+
+            PagedList<Recipe> list = cache.getOrElseUpdate(getPagedUserRecipeCollectionCacheKey(id, page),
+                    () -> Recipe.findIdsByUser(id, page), COLLECTION_CACHE_EXPIRATION,
+                    l -> new String[] { getUserRecipesTag(id) });
 
-        return RecipeController.displayRecipes(list, page);
+            return displayRecipes(format, SearchPage.of(list,
+                    getTotalCount(list::getTotalCount, "user-" + id + "-recipes", getUserRecipesTag(id))),
+                    page, expand, fields);
+        });
     }
 
     @Security.Authenticated(Authorization.class)
-    public Result resetToken() {
-        User user = getLoggedUser();
-        String token = user.resetToken();
+    public CompletionStage<Result> retrieveUserRecipesByCursor(Long id, String cursor, String sortBy) {
+        return onSearch(() -> {
+            Keyset keyset = getKeyset(cursor, sortBy, Recipe.SORT_PROPERTIES);
+            Set<String> expand = getRecipeExpansion();
+            if (keyset == null || expand == null) {
+                return Results.badRequest();
+            }
+
+            if (!User.exists(id)) {
+                return Results.notFound();
+            }
 
-        return Results
-                .ok()
-                .withHeader("Authorization", token);
+            return RecipeController.displayRecipes(Recipe.findByUser(id, expand, keyset), expand);
+        });
     }
 
-    private Result displayUsers(PagedList<User> list, Integer page) {
-        List<User> users = list.getList();
+    @Security.Authenticated(Authorization.class)
+    public CompletionStage<Result> resetToken() {
+        User user = getLoggedUser();
+        return onWrite(() -> {
+            String oldToken = user.getToken().getToken();
+            user.resetToken();
+            tokenCache.evict(oldToken);
+            String token = signedTokens.tokenFor(user);
+
+            return Results
+                    .ok()
+                    .withHeader("Authorization", token);
+        });
+    }
 
-        if (request().accepts("application/json")) {
-            ObjectNode json = Json.newObject();
-            json.put("page", page);
-            json.put("total", list.getTotalCount());
-            json.putPOJO("users", users);
-            return ok(json);
-        } else if (request().accepts("application/xml")) {
-            return ok(views.xml.users.render(page, list.getTotalCount(), users));
+    private CachedResponse renderUser(User user, String format) {
+        String etag = ETags.ofUser(format, user);
+        if (!format.equals(XML)) {
+            return CachedResponse.encoded(format, user, etag, getUserTags(user.getId()));
         } else {
+            return CachedResponse.xml(views.xml.user.render(user), etag, getUserTags(user.getId()));
+        }
+    }
+
+    private Result displayUsers(List<User> users, Integer total, Integer page) {
+        String format = getResponseFormat();
+        if (format == null) {
             return Results.status(415);
         }
+
+        String etag = ETags.ofUsers(format, page, (total != null) ? total : -1, users);
+        if (ETags.matches(request(), etag)) {
+            return notModified(etag);
+        }
+
+        if (!format.equals(XML)) {
+            ObjectWriter writer = Encodings.getMapper(format).writer();
+            return ok().chunked(StreamedCollection.encoded(format, writer, page, total, "users", users))
+                    .as(Encodings.getContentType(format)).withHeader(ETAG, etag);
+        } else {
+            return ok().chunked(StreamedCollection.xml(page, total, "users", users, views.xml._user::render))
+                    .as(CachedResponse.XML_CONTENT_TYPE).withHeader(ETAG, etag);
+        }
     }
 
-    private String getSingleUserCacheKey(Long id) {
-        return "user-" + id;
+    private Result displayUsers(Keyset.Page<User> list) {
+        String format = getResponseFormat();
+        if (format == null) {
+            return Results.status(415);
+        }
+
+        if (!format.equals(XML)) {
+            ObjectWriter writer = Encodings.getMapper(format).writer();
+            return ok()
+                    .chunked(StreamedCollection.encoded(format, writer, list.getNext(), "users", list.getList()))
+                    .as(Encodings.getContentType(format));
+        } else {
+            return ok()
+                    .chunked(StreamedCollection.xml(list.getNext(), "users", list.getList(), views.xml._user::render))
+                    .as(CachedResponse.XML_CONTENT_TYPE);
+        }
     }
 
     private String getSingleUserResponseCacheKey(Long id, String format) {
@@ -220,15 +428,21 @@ public class UserController extends BaseController {
         return "user-" + id + "-recipes-" + page;
     }
 
+    private String[] getUserTags(Long id) {
+        return new String[] { getUserTag(id) };
+    }
+
+    // Recipes and reviews show their users, so their entries depend on the user tag too
     private void deleteUserFromCache(Long id) {
-        cache.remove(getSingleUserCacheKey(id));
-        cache.remove(getSingleUserResponseCacheKey(id, "json"));
-        cache.remove(getSingleUserResponseCacheKey(id, "xml"));
+        cache.invalidate(getUserTag(id), USERS_TAG);
     }
 
     private void deleteUserRecipesFromCache(User user) {
         for (Recipe recipe : user.getRecipes()) {
-            deleteRecipeFromCache(recipe.getId());
+            searchIndex.remove(recipe.getId());
+            pantryIndex.remove(recipe.getId());
+            similarRecipesIndex.remove(recipe.getId());
+            invalidateRecipeCache(recipe);
         }
     }
 }
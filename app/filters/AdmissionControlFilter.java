@@ -0,0 +1,159 @@
+package filters;
+
+import akka.Done;
+import akka.japi.function.Function2;
+import akka.util.ByteString;
+import com.typesafe.config.Config;
+import play.http.HttpEntity;
+import play.libs.streams.Accumulator;
+import play.mvc.EssentialAction;
+import play.mvc.EssentialFilter;
+import play.mvc.Http;
+import play.mvc.Result;
+import play.mvc.Results;
+import services.AdmissionControl;
+import services.SignedTokens;
+import services.TokenCache;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Rejects requests with a 503 on arrival, before they are authenticated
+ * or reach any controller, once the adaptive limit of
+ * {@link AdmissionControl} is used up for their priority. Anonymous
+ * requests have the lowest priority, then authenticated reads, and then
+ * authenticated writes. A request holds its permit until its body has
+ * been sent. Static assets and metrics are always admitted.
+ */
+@Singleton
+public class AdmissionControlFilter extends EssentialFilter {
+
+    private final AdmissionControl admission;
+    private final TokenCache tokenCache;
+    private final SignedTokens signedTokens;
+    private final Executor exec;
+    private final String retryAfter;
+
+    @Inject
+    public AdmissionControlFilter(AdmissionControl admission, TokenCache tokenCache, SignedTokens signedTokens,
+                                  Executor exec, Config config) {
+        this.admission = admission;
+        this.tokenCache = tokenCache;
+        this.signedTokens = signedTokens;
+        this.exec = exec;
+        this.retryAfter = String.valueOf(
+                config.getDuration("recipedia.admission.retry-after", TimeUnit.SECONDS));
+    }
+
+    @Override
+    public EssentialAction apply(EssentialAction next) {
+        return EssentialAction.of(request -> {
+            if (request.path().startsWith("/assets/") || request.path().startsWith("/metrics/")) {
+                return next.apply(request);
+            }
+
+            if (!admission.tryAcquire(getPriority(request))) {
+                return Accumulator.done(Results.status(Http.Status.SERVICE_UNAVAILABLE)
+                        .withHeader(Http.HeaderNames.RETRY_AFTER, retryAfter));
+            }
+
+            Runnable release = releaseOnce();
+            Accumulator<ByteString, Result> accumulator;
+            try {
+                accumulator = next.apply(request);
+            } catch (RuntimeException e) {
+                release.run();
+                throw e;
+            }
+
+            return accumulator
+                    .map(result -> releasedWithBody(result, release), exec)
+                    .recoverWith(e -> {
+                        release.run();
+                        CompletableFuture<Result> failed = new CompletableFuture<>();
+                        failed.completeExceptionally(e);
+                        return failed;
+                    }, exec);
+        });
+    }
+
+    /**
+     * Priority of a request from its token, resolved without the database:
+     * signed tokens by their signature, and other tokens only if they are
+     * in the token cache. Requests with unknown tokens are anonymous, so
+     * that made up tokens cannot claim a higher share.
+     */
+    private AdmissionControl.Priority getPriority(Http.RequestHeader request) {
+        String auth = request.getHeaders().get(Http.HeaderNames.AUTHORIZATION).orElse(null);
+        if (auth == null || !isKnownToken(auth)) {
+            return AdmissionControl.Priority.ANONYMOUS;
+        }
+
+        return (request.method().equals("GET") || request.method().equals("HEAD"))
+                ? AdmissionControl.Priority.READ : AdmissionControl.Priority.WRITE;
+    }
+
+    private boolean isKnownToken(String auth) {
+        if (!signedTokens.isSigned(auth)) {
+            return tokenCache.contains(auth);
+        }
+
+        long[] claims = signedTokens.verify(auth);
+        if (claims == null) {
+            return false;
+        }
+
+        // A generation that is not known yet is checked when the request is authenticated
+        Long generation = signedTokens.currentGeneration(claims[0]);
+        return generation == null || generation == claims[1];
+    }
+
+    /**
+     * The same result, releasing the permit once its body has been sent or
+     * has failed, since streamed bodies keep querying the database after
+     * the result is returned. Bodies already in memory release it now.
+     */
+    private static Result releasedWithBody(Result result, Runnable release) {
+        HttpEntity body = result.body();
+        HttpEntity watched;
+        if (body instanceof HttpEntity.Chunked) {
+            HttpEntity.Chunked chunked = (HttpEntity.Chunked) body;
+            watched = new HttpEntity.Chunked(chunked.chunks().watchTermination(onTermination(release)),
+                    chunked.contentType());
+        } else if (body instanceof HttpEntity.Streamed) {
+            HttpEntity.Streamed streamed = (HttpEntity.Streamed) body;
+            watched = new HttpEntity.Streamed(streamed.data().watchTermination(onTermination(release)),
+                    streamed.contentLength(), streamed.contentType());
+        } else {
+            release.run();
+            return result;
+        }
+
+        play.api.mvc.Result scala = result.asScala();
+        return scala.copy(scala.header(), watched.asScala(), scala.newSession(), scala.newFlash(),
+                scala.newCookies()).asJava();
+    }
+
+    private static <M> Function2<M, CompletionStage<Done>, M> onTermination(Runnable release) {
+        return (mat, done) -> {
+            done.whenComplete((d, e) -> release.run());
+            return mat;
+        };
+    }
+
+    // Releases the permit of a request the first time it is called
+    private Runnable releaseOnce() {
+        AtomicBoolean released = new AtomicBoolean();
+        return () -> {
+            if (released.compareAndSet(false, true)) {
+                admission.release();
+            }
+        };
+    }
+}
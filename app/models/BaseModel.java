@@ -9,6 +9,9 @@ import javax.persistence.Id;
 import javax.persistence.MappedSuperclass;
 import javax.persistence.Version;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 @MappedSuperclass
 public abstract class BaseModel extends Model {
@@ -28,7 +31,20 @@ public abstract class BaseModel extends Model {
     @JsonIgnore
     private Timestamp updatedAt;
 
-    static final int PAGE_SIZE = 20;  // Number of models per page
+    public static final int PAGE_SIZE = 20;  // Number of models per page
+
+    // Models found by id, in the order of the given ids
+    static <T> List<T> inOrder(List<Long> ids, Map<Object, T> found) {
+        List<T> result = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            T model = found.get(id);
+            if (model != null) {
+                result.add(model);
+            }
+        }
+
+        return result;
+    }
 
     public Long getId() {
         return id;
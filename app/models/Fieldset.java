@@ -0,0 +1,127 @@
+package models;
+
+import com.fasterxml.jackson.annotation.JsonFilter;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
+import io.ebean.Ebean;
+import io.ebean.plugin.BeanType;
+import io.ebean.plugin.Property;
+import play.libs.Json;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Subset of the properties of an entity requested by a client (sparse
+ * fieldset), which are the only ones read from the database and written
+ * to the response. The id is always included.
+ *
+ * Just the properties of the entity itself that its representations show
+ * can be requested, not its associations nor what it hides.
+ */
+public class Fieldset {
+
+    private static final String FILTER = "fieldset";
+
+    // Every representation of the entities, with no fields left out
+    public static final Fieldset ALL = new Fieldset(null, null);
+
+    // Copies of the mappers of every encoding that apply the filter to every entity
+    private static final Map<ObjectMapper, ObjectMapper> MAPPERS = new ConcurrentHashMap<>();
+
+    private final BeanType<?> beanType;
+    private final Set<String> properties;
+
+    private Fieldset(BeanType<?> beanType, Set<String> properties) {
+        this.beanType = beanType;
+        this.properties = properties;
+    }
+
+    /**
+     * Fieldset of the given entity requested as a comma separated list of
+     * properties, {@link #ALL} if none was requested, or null if some of
+     * them are not properties of the entity or are never shown.
+     */
+    public static Fieldset parse(Class<? extends BaseModel> type, String requested) {
+        if (requested == null || requested.trim().isEmpty()) {
+            return ALL;
+        }
+
+        BeanType<?> beanType = Ebean.getDefaultServer().getPluginApi().getBeanType(type);
+        Set<String> shown = getShownProperties(type);
+        Set<String> properties = new LinkedHashSet<>();
+        properties.add("id");
+        for (String name : requested.split(",")) {
+            name = name.trim();
+            Property property = beanType.getProperty(name);
+            if (property == null || property.isMany()
+                    || BaseModel.class.isAssignableFrom(property.getPropertyType()) || !shown.contains(name)) {
+                return null;
+            }
+            properties.add(name);
+        }
+
+        return new Fieldset(beanType, properties);
+    }
+
+    public boolean isAll() {
+        return properties == null;
+    }
+
+    // Properties to select, including the version which entity tags are computed from
+    public String getSelect() {
+        return "version, " + String.join(", ", properties);
+    }
+
+    /**
+     * Writer of the encoding of the given mapper that leaves out the
+     * properties of the entities that were not requested.
+     */
+    public ObjectWriter getWriter(ObjectMapper mapper) {
+        return MAPPERS.computeIfAbsent(mapper, m -> m.copy().addMixIn(BaseModel.class, Filtered.class))
+                .writer(new SimpleFilterProvider()
+                        .addFilter(FILTER, SimpleBeanPropertyFilter.filterOutAllExcept(properties)));
+    }
+
+    // Requested properties of an entity by name, in the requested order
+    public Map<String, Object> getValues(BaseModel entity) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (String name : properties) {
+            values.put(name, beanType.getProperty(name).getVal(entity));
+        }
+
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return isAll() ? "*" : String.join(",", properties);
+    }
+
+    // Properties that the representations of the entity show, as found by Jackson
+    private static Set<String> getShownProperties(Class<?> type) {
+        ObjectMapper mapper = Json.mapper();
+        BeanDescription description = mapper.getSerializationConfig().introspect(mapper.constructType(type));
+
+        Set<String> shown = new HashSet<>();
+        for (BeanPropertyDefinition property : description.findProperties()) {
+            if (property.couldSerialize()) {
+                shown.add(property.getName());
+            }
+        }
+
+        return shown;
+    }
+
+    @JsonFilter(FILTER)
+    private static class Filtered {
+    }
+}
@@ -2,13 +2,17 @@ package models;
 
 import com.fasterxml.jackson.annotation.JsonBackReference;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import io.ebean.Ebean;
 import io.ebean.Finder;
+import io.ebean.SqlRow;
 
 import javax.persistence.Entity;
 import javax.persistence.ManyToMany;
 import javax.persistence.Table;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 @Entity
 @Table(name = "ingredients")
@@ -35,6 +39,21 @@ public class Ingredient extends BaseModel {
                 .findOne();
     }
 
+    // Number of recipes using each ingredient, by name
+    public static Map<String, Integer> findUsage() {
+        List<SqlRow> rows = Ebean
+                .createSqlQuery("select t.name, count(rt.recipes_id) as uses from ingredients t"
+                        + " left join recipes_ingredients rt on rt.ingredients_id = t.id group by t.id, t.name")
+                .findList();
+
+        Map<String, Integer> usage = new HashMap<>();
+        for (SqlRow row : rows) {
+            usage.merge(row.getString("name"), row.getInteger("uses"), Integer::sum);
+        }
+
+        return usage;
+    }
+
     @JsonIgnore
     @Override
     public Long getId() {
@@ -0,0 +1,202 @@
+package models;
+
+import io.ebean.Expr;
+import io.ebean.Expression;
+import io.ebean.ExpressionList;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Position in a listing sorted by a property and then by id, used for
+ * keyset pagination: every page is fetched with a condition on the sort key
+ * of the last row of the previous page instead of an offset, so its cost
+ * does not depend on how deep it is.
+ *
+ * Keysets travel to clients as opaque cursors.
+ */
+public class Keyset {
+
+    private static final String SEPARATOR = "\n";
+
+    private final String property;
+    private final boolean descending;
+    private final Object value;
+    private final Long id;
+
+    private Keyset(String property, boolean descending, Object value, Long id) {
+        this.property = property;
+        this.descending = descending;
+        this.value = value;
+        this.id = id;
+    }
+
+    /**
+     * Keyset of the first page of a listing sorted by the given property, or
+     * by id if the property can not be used as a sort key.
+     */
+    public static <T> Keyset first(String[] sortBy, Map<String, SortProperty<T>> sortProperties) {
+        if (sortBy != null && sortBy.length == 2 && sortProperties.containsKey(sortBy[0])
+                && (sortBy[1].equalsIgnoreCase("asc") || sortBy[1].equalsIgnoreCase("desc"))) {
+            return new Keyset(sortBy[0], sortBy[1].equalsIgnoreCase("desc"), null, null);
+        }
+
+        return new Keyset("id", false, null, null);
+    }
+
+    /**
+     * Decodes a cursor handed to a client, checking that it points into a
+     * listing sorted by one of the given properties with a value of its type.
+     *
+     * @throws IllegalArgumentException if the cursor is malformed or tampered
+     */
+    public static <T> Keyset decode(String cursor, Map<String, SortProperty<T>> sortProperties) {
+        String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8)
+                .split(SEPARATOR, 4);
+        if (parts.length != 4 || parts[3].isEmpty()
+                || !(parts[1].equals("asc") || parts[1].equals("desc"))) {
+            throw new IllegalArgumentException("Malformed cursor");
+        }
+
+        SortProperty<T> sortProperty = sortProperties.get(parts[0]);
+        if (sortProperty == null) {
+            throw new IllegalArgumentException("Unknown sort property " + parts[0]);
+        }
+
+        Object value;
+        Long id;
+        try {
+            value = decodeValue(parts[3]);
+            id = Long.valueOf(parts[2]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed cursor", e);
+        }
+
+        // Listings sorted by id only compare ids, so their value is never used
+        if (!parts[0].equals("id") && value != null && !sortProperty.type.isInstance(value)) {
+            throw new IllegalArgumentException("Sort value of the wrong type for " + parts[0]);
+        }
+
+        return new Keyset(parts[0], parts[1].equals("desc"), value, id);
+    }
+
+    public String encode() {
+        String encodedValue;
+        if (value == null) {
+            encodedValue = "n";
+        } else if (value instanceof Integer) {
+            encodedValue = "i" + value;
+        } else if (value instanceof Double) {
+            encodedValue = "d" + value;
+        } else {
+            encodedValue = "s" + value;
+        }
+        String cursor = property + SEPARATOR + (descending ? "desc" : "asc") + SEPARATOR + id
+                + SEPARATOR + encodedValue;
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Fetches the page following this keyset among the rows matching the
+     * given expressions.
+     */
+    <T extends BaseModel> Page<T> fetch(ExpressionList<T> where, int pageSize,
+                                        Map<String, SortProperty<T>> sortProperties) {
+        SortProperty<T> sortProperty = sortProperties.get(property);
+        if (sortProperty == null) {
+            throw new IllegalArgumentException("Unknown sort property " + property);
+        }
+
+        String direction = descending ? " desc" : " asc";
+        if (id != null) {
+            Expression afterId = descending ? Expr.lt("id", id) : Expr.gt("id", id);
+            if (property.equals("id")) {
+                where.add(afterId);
+            } else if (value == null) {
+                Expression sameValue = Expr.and(Expr.isNull(property), afterId);
+                where.add(descending ? sameValue : Expr.or(sameValue, Expr.isNotNull(property)));
+            } else {
+                Expression after = Expr.or(
+                        descending ? Expr.lt(property, value) : Expr.gt(property, value),
+                        Expr.and(Expr.eq(property, value), afterId));
+                where.add(descending ? Expr.or(after, Expr.isNull(property)) : after);
+            }
+        }
+
+        // Missing values sort lowest, first when ascending and last when descending
+        String orderBy = property.equals("id") ? "id" + direction
+                : property + direction + (descending ? " nulls last" : " nulls first") + ", id" + direction;
+        List<T> rows = where
+                .query()
+                .orderBy(orderBy)
+                .setMaxRows(pageSize + 1)
+                .findList();
+
+        if (rows.size() <= pageSize) {
+            return new Page<>(rows, null);
+        }
+
+        List<T> page = rows.subList(0, pageSize);
+        T last = page.get(pageSize - 1);
+        Keyset next = new Keyset(property, descending, sortProperty.value.apply(last), last.getId());
+
+        return new Page<>(page, next.encode());
+    }
+
+    private static Object decodeValue(String encoded) {
+        switch (encoded.charAt(0)) {
+            case 'n':
+                return null;
+            case 'i':
+                return Integer.valueOf(encoded.substring(1));
+            case 'd':
+                return Double.valueOf(encoded.substring(1));
+            default:
+                return encoded.substring(1);
+        }
+    }
+
+    /**
+     * Property a listing can be sorted by, with the type of its values.
+     */
+    public static class SortProperty<T> {
+
+        private final Class<?> type;
+        private final Function<T, ?> value;
+
+        private SortProperty(Class<?> type, Function<T, ?> value) {
+            this.type = type;
+            this.value = value;
+        }
+
+        public static <T, V> SortProperty<T> of(Class<V> type, Function<T, V> value) {
+            return new SortProperty<>(type, value);
+        }
+    }
+
+    /**
+     * Rows of a page, and the cursor of the next one if there is any.
+     */
+    public static class Page<T> {
+
+        private final List<T> list;
+        private final String next;
+
+        Page(List<T> list, String next) {
+            this.list = list;
+            this.next = next;
+        }
+
+        public List<T> getList() {
+            return list;
+        }
+
+        public String getNext() {
+            return next;
+        }
+    }
+}
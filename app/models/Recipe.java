@@ -4,17 +4,31 @@ import com.fasterxml.jackson.annotation.JsonManagedReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import io.ebean.Ebean;
 import io.ebean.ExpressionList;
+import io.ebean.FetchConfig;
 import io.ebean.Finder;
 import io.ebean.PagedList;
+import io.ebean.Query;
+import io.ebean.SqlUpdate;
+import io.ebean.annotation.DbDefault;
 import io.ebean.annotation.EnumValue;
+import io.ebean.annotation.Index;
 import play.data.validation.Constraints.MaxLength;
 import play.data.validation.Constraints.Required;
 import play.libs.Json;
 
 import javax.persistence.*;
 import javax.validation.constraints.Min;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 @Entity
 @Table(name = "recipes")
@@ -87,9 +101,70 @@ public class Recipe extends BaseModel {
     @JsonManagedReference
     private List<Review> reviews = new ArrayList<>();
 
+    // Rating aggregates, only ever written by addReview. The average rating
+    // is null until the first review, and the histogram counts the reviews
+    // by rating rounded to the nearest star
+    @Index
+    @Column(insertable = false, updatable = false)
+    private Double rating;
+
+    @DbDefault("0")
+    @Column(insertable = false, updatable = false)
+    private Integer reviewCount;
+
+    @DbDefault("0")
+    @Column(insertable = false, updatable = false)
+    private Double ratingSum;
+
+    @DbDefault("0")
+    @Column(insertable = false, updatable = false)
+    private Integer stars1;
+
+    @DbDefault("0")
+    @Column(insertable = false, updatable = false)
+    private Integer stars2;
+
+    @DbDefault("0")
+    @Column(insertable = false, updatable = false)
+    private Integer stars3;
+
+    @DbDefault("0")
+    @Column(insertable = false, updatable = false)
+    private Integer stars4;
+
+    @DbDefault("0")
+    @Column(insertable = false, updatable = false)
+    private Integer stars5;
+
     private static final Finder<Long, Recipe> find =
             new Finder<>(Recipe.class);
 
+    // Properties that recipe listings can be sorted by when paginated by keyset
+    public static final Map<String, Keyset.SortProperty<Recipe>> SORT_PROPERTIES = new HashMap<>();
+    static {
+        SORT_PROPERTIES.put("id", Keyset.SortProperty.of(Long.class, Recipe::getId));
+        SORT_PROPERTIES.put("name", Keyset.SortProperty.of(String.class, Recipe::getName));
+        SORT_PROPERTIES.put("kitchen", Keyset.SortProperty.of(String.class, Recipe::getKitchen));
+        SORT_PROPERTIES.put("rations", Keyset.SortProperty.of(Integer.class, Recipe::getRations));
+        SORT_PROPERTIES.put("time", Keyset.SortProperty.of(Integer.class, Recipe::getTime));
+        SORT_PROPERTIES.put("rating", Keyset.SortProperty.of(Double.class, Recipe::getRating));
+    }
+
+    // Properties that recipe listings only show when expanded, or all of them
+    public static final Set<String> EXPANDABLE_PROPERTIES = new HashSet<>(Arrays.asList(
+            "description", "steps", "user", "ingredients", "tags", "reviews"));
+    public static final String EXPAND_ALL = "all";
+
+    // Properties that listings can be filtered or sorted by, besides the rating
+    public static final Set<String> LISTED_PROPERTIES = new HashSet<>(Arrays.asList(
+            "id", "name", "description", "difficulty", "kitchen", "rations", "time", "type", "ingredients", "tags"));
+
+    public static final int MAX_IDS_PER_QUERY = 1000;
+
+    // Columns of the summaries, which include every sort property
+    private static final String SUMMARY_PROPERTIES =
+            "version, name, type, difficulty, kitchen, rations, time, rating, reviewCount";
+
     public Recipe() {
         super();
     }
@@ -98,6 +173,24 @@ public class Recipe extends BaseModel {
         return find.byId(id);
     }
 
+    // Recipe with everything shown with it, to be rendered
+    public static Recipe findGraphById(Long id) {
+        return withGraph(find.query())
+                .where()
+                    .idEq(id)
+                .findOne();
+    }
+
+    public static boolean isNameTaken(String name, Long userId, Long excludedId) {
+        return find
+                .query()
+                .where()
+                    .eq("name", name)
+                    .eq("user.id", userId)
+                    .ne("id", excludedId)
+                .findCount() > 0;
+    }
+
     private static Recipe findByNameAndUser(String name, User user) {
         return find
                 .query()
@@ -107,9 +200,11 @@ public class Recipe extends BaseModel {
                 .findOne();
     }
 
-    public static PagedList<Recipe> findByUser(Long userId, Integer page) {
+    // Page of the recipes of a user, with nothing but their ids loaded
+    public static PagedList<Recipe> findIdsByUser(Long userId, Integer page) {
         return find
                 .query()
+                .select("id")
                 .where()
                     .eq("user.id", userId)
                 .setMaxRows(PAGE_SIZE)
@@ -117,18 +212,194 @@ public class Recipe extends BaseModel {
                 .findPagedList();
     }
 
-    public static PagedList<Recipe> findAll(Integer page) {
+    public static Keyset.Page<Recipe> findByUser(Long userId, Set<String> expand, Keyset keyset) {
+        return keyset.fetch(withView(find.query(), expand).where().eq("user.id", userId), PAGE_SIZE, SORT_PROPERTIES);
+    }
+
+    public static Keyset.Page<Recipe> findAll(Set<String> expand, Keyset keyset) {
+        return keyset.fetch(withView(find.query(), expand).where(), PAGE_SIZE, SORT_PROPERTIES);
+    }
+
+    // Page of every recipe, with nothing but their ids loaded
+    public static PagedList<Recipe> findIds(Integer page) {
         return find
                 .query()
+                .select("id")
                 .setMaxRows(PAGE_SIZE)
                 .setFirstRow(PAGE_SIZE * page)
                 .findPagedList();
     }
 
-    public static PagedList<Recipe> findBy(String name, String description, String difficulty,
-                                           String userId, String kitchen, String[] rations,
-                                           String[] time, String type, String ingredient,
-                                           String tag, String[] sortBy, Integer page) {
+    // Page of the recipes matching the filters, with nothing but their ids loaded
+    public static PagedList<Recipe> findIdsBy(String name, String description, String difficulty,
+                                              String userId, String kitchen, String[] rations,
+                                              String[] time, String type, String ingredient,
+                                              String tag, String minRating, String[] sortBy,
+                                              Integer page) {
+        return searchQuery(name, description, difficulty, userId, kitchen, rations, time,
+                type, ingredient, tag, minRating, sortBy)
+                .query()
+                .select("id")
+                .setMaxRows(PAGE_SIZE)
+                .setFirstRow(PAGE_SIZE * page)
+                .findPagedList();
+    }
+
+    public static Keyset.Page<Recipe> findBy(String name, String description, String difficulty,
+                                             String userId, String kitchen, String[] rations,
+                                             String[] time, String type, String ingredient,
+                                             String tag, String minRating, Set<String> expand,
+                                             Keyset keyset) {
+        ExpressionList<Recipe> searchQuery = searchQuery(name, description, difficulty, userId, kitchen,
+                rations, time, type, ingredient, tag, minRating, null);
+        withView(searchQuery.query(), expand);
+
+        return keyset.fetch(searchQuery, PAGE_SIZE, SORT_PROPERTIES);
+    }
+
+    /**
+     * Ids among the given ones of the recipes matching the filters, checked
+     * in a single query, so no more than {@value #MAX_IDS_PER_QUERY} ids
+     * can be given.
+     */
+    public static Set<Long> findIdsBy(String name, String description, String difficulty,
+                                      String userId, String kitchen, String[] rations,
+                                      String[] time, String type, String ingredient,
+                                      String tag, String minRating, Collection<Long> ids) {
+        if (ids.size() > MAX_IDS_PER_QUERY) {
+            throw new IllegalArgumentException("Too many ids to check at once: " + ids.size());
+        }
+
+        Set<Long> result = new HashSet<>();
+        if (ids.isEmpty()) {
+            return result;
+        }
+
+        List<Object> found = searchQuery(name, description, difficulty, userId, kitchen, rations, time,
+                type, ingredient, tag, minRating, null)
+                .in("id", ids)
+                .findIds();
+        for (Object id : found) {
+            result.add((Long) id);
+        }
+
+        return result;
+    }
+
+    // Recipes with the given ids, in the same order
+    public static List<Recipe> findByIds(List<Long> ids) {
+        return inOrder(ids, withGraph(find.query())
+                .where()
+                    .in("id", ids)
+                .findMap());
+    }
+
+    // Recipes with the given ids, in the same order, with nothing but the given fields loaded
+    public static List<Recipe> findByIds(List<Long> ids, Fieldset fields) {
+        return inOrder(ids, find
+                .query()
+                .select(fields.getSelect())
+                .where()
+                    .in("id", ids)
+                .findMap());
+    }
+
+    public static Recipe findById(Long id, Fieldset fields) {
+        return find
+                .query()
+                .select(fields.getSelect())
+                .where()
+                    .idEq(id)
+                .findOne();
+    }
+
+    // Summaries of the recipes with the given ids, in the same order
+    public static List<RecipeSummary> findSummariesByIds(List<Long> ids, Set<String> expand) {
+        List<Recipe> recipes = inOrder(ids, withView(find.query(), expand)
+                .where()
+                    .in("id", ids)
+                .findMap());
+
+        List<RecipeSummary> result = new ArrayList<>(recipes.size());
+        for (Recipe recipe : recipes) {
+            result.add(recipe.toSummary(expand));
+        }
+
+        return result;
+    }
+
+    // Text properties of every recipe, for the in-memory indexes
+    public static void findEachText(Consumer<Recipe> consumer) {
+        find
+                .query()
+                .select("name, description, kitchen")
+                .findEach(consumer);
+    }
+
+    // Names of the ingredients and tags of every recipe, for the in-memory indexes
+    public static void findEachComposition(Consumer<Recipe> consumer) {
+        find
+                .query()
+                .select("id")
+                .fetch("ingredients", "name")
+                .fetch("tags", "name")
+                .findEach(consumer);
+    }
+
+    /**
+     * Fetches everything shown with the recipes of a query along with them:
+     * their owners in the same query, and their ingredients, tags and
+     * reviews with their users in one batched query per association, so
+     * that rendering them never triggers a lazy load per recipe.
+     */
+    private static Query<Recipe> withGraph(Query<Recipe> query) {
+        return query
+                .fetch("user")
+                .fetch("ingredients", new FetchConfig().query())
+                .fetch("tags", new FetchConfig().query())
+                .fetch("reviews", new FetchConfig().query())
+                .fetch("reviews.user");
+    }
+
+    /**
+     * Loads the recipes of a query as shown by listings: just the columns
+     * of their summaries and the expanded properties, fetched like in
+     * {@link #withGraph}, or the whole graph if everything is expanded.
+     */
+    private static Query<Recipe> withView(Query<Recipe> query, Set<String> expand) {
+        if (expand.contains(EXPAND_ALL)) {
+            return withGraph(query);
+        }
+
+        StringBuilder properties = new StringBuilder(SUMMARY_PROPERTIES);
+        for (String column : new String[] { "description", "steps" }) {
+            if (expand.contains(column)) {
+                properties.append(", ").append(column);
+            }
+        }
+        query.select(properties.toString());
+
+        if (expand.contains("user")) {
+            query.fetch("user");
+        }
+        if (expand.contains("ingredients")) {
+            query.fetch("ingredients", new FetchConfig().query());
+        }
+        if (expand.contains("tags")) {
+            query.fetch("tags", new FetchConfig().query());
+        }
+        if (expand.contains("reviews")) {
+            query.fetch("reviews", new FetchConfig().query())
+                    .fetch("reviews.user");
+        }
+
+        return query;
+    }
+
+    private static ExpressionList<Recipe> searchQuery(String name, String description, String difficulty,
+                                                     String userId, String kitchen, String[] rations,
+                                                     String[] time, String type, String ingredient,
+                                                     String tag, String minRating, String[] sortBy) {
         ExpressionList<Recipe> searchQuery = find
                 .query()
                 .where();
@@ -176,16 +447,15 @@ public class Recipe extends BaseModel {
         if (tag != null) {
             searchQuery.ieq("tags.name", tag);
         }
+        if (minRating != null) {
+            searchQuery.ge("rating", Double.valueOf(minRating));
+        }
         if (sortBy != null && sortBy.length == 2 && (sortBy[1].equalsIgnoreCase("asc")
                 || sortBy[1].equalsIgnoreCase("desc"))) {
             searchQuery.query().orderBy(sortBy[0] + " " + sortBy[1]);
         }
 
-        return searchQuery
-                .query()
-                .setMaxRows(PAGE_SIZE)
-                .setFirstRow(PAGE_SIZE * page)
-                .findPagedList();
+        return searchQuery;
     }
 
     public boolean validateAndSave() {
@@ -210,6 +480,78 @@ public class Recipe extends BaseModel {
         return true;
     }
 
+    /**
+     * Updates the given properties of a recipe in a single statement, as long
+     * as it still belongs to the given user and has the given version.
+     * Returns whether the recipe was updated.
+     */
+    public static boolean updateIfVersion(Long id, Long userId, Long version, Map<String, Object> values) {
+        StringBuilder sql = new StringBuilder("update recipes set ");
+        for (String property : values.keySet()) {
+            sql.append(property).append(" = :").append(property).append(", ");
+        }
+        sql.append("version = version + 1, updated_at = :updatedAt")
+                .append(" where id = :id and user_id = :userId and version = :version");
+
+        SqlUpdate update = Ebean.createSqlUpdate(sql.toString());
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            update.setParameter(value.getKey(), (value.getValue() instanceof Enum)
+                    ? ((Enum<?>) value.getValue()).name() : value.getValue());
+        }
+        update.setParameter("updatedAt", new Timestamp(System.currentTimeMillis()));
+        update.setParameter("id", id);
+        update.setParameter("userId", userId);
+        update.setParameter("version", version);
+
+        return update.execute() == 1;
+    }
+
+    // Properties that can be modified by clients, which are stored in columns of the same name
+    public Map<String, Object> getUpdatableValues() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("name", name);
+        values.put("description", description);
+        values.put("difficulty", difficulty);
+        values.put("steps", steps);
+        values.put("kitchen", kitchen);
+        values.put("rations", rations);
+        values.put("time", time);
+        values.put("type", type);
+
+        return values;
+    }
+
+    public void setUpdatableValues(Map<String, Object> values) {
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            switch (value.getKey()) {
+                case "name":
+                    setName((String) value.getValue());
+                    break;
+                case "description":
+                    setDescription((String) value.getValue());
+                    break;
+                case "difficulty":
+                    difficulty = (Difficulty) value.getValue();
+                    break;
+                case "steps":
+                    setSteps((String) value.getValue());
+                    break;
+                case "kitchen":
+                    setKitchen((String) value.getValue());
+                    break;
+                case "rations":
+                    setRations((Integer) value.getValue());
+                    break;
+                case "time":
+                    setTime((Integer) value.getValue());
+                    break;
+                case "type":
+                    type = (Type) value.getValue();
+                    break;
+            }
+        }
+    }
+
     // A user can not have two recipes with same name
     private boolean isRecipeDuplicated() {
         Recipe recipe = Recipe.findByNameAndUser(this.name, this.user);
@@ -262,13 +604,18 @@ public class Recipe extends BaseModel {
         return true;
     }
 
-    public void deleteIngredientAndSave(String ingrName) {
+    // Returns whether the recipe had the ingredient
+    public boolean deleteIngredientAndSave(String ingrName) {
         Ingredient ingredient = Ingredient.findByName(ingrName);
         if (ingredient != null) {
             ingredient.getRecipes().remove(this);
-            this.getIngredients().remove(ingredient);
-            this.update();
+            if (this.getIngredients().remove(ingredient)) {
+                this.update();
+                return true;
+            }
         }
+
+        return false;
     }
 
     public boolean validateTagAndSave(String tagName) {
@@ -300,22 +647,70 @@ public class Recipe extends BaseModel {
         return true;
     }
 
-    public void deleteTagAndSave(String tagName) {
+    // Returns whether the recipe had the tag
+    public boolean deleteTagAndSave(String tagName) {
         Tag tag = Tag.findByName(tagName);
         if (tag != null) {
             tag.getRecipes().remove(this);
-            this.getTags().remove(tag);
-            this.update();
+            if (this.getTags().remove(tag)) {
+                this.update();
+                return true;
+            }
         }
+
+        return false;
     }
 
+    /**
+     * Saves a review and adds its rating to the aggregates of the recipe in
+     * the same transaction.
+     */
     public boolean addReview(Review review) {
         review.setRecipe(this);
+
+        Ebean.beginTransaction();
+        try {
+            if (!review.validateAndSave()) {
+                return false;
+            }
+            addRating(this.getId(), review.getRating());
+
+            Ebean.commitTransaction();
+        } finally {
+            Ebean.endTransaction();
+        }
+
         this.getReviews().add(review);
-        return review.validateAndSave();
+        return true;
     }
 
-    private String toCamelCase(String string) {
+    // Relative update, so concurrent reviews of the same recipe do not overwrite each other
+    private static void addRating(Long id, Float rating) {
+        String stars = "stars" + Math.max(1, Math.round(rating));
+        SqlUpdate update = Ebean.createSqlUpdate("update recipes set review_count = review_count + 1,"
+                + " rating_sum = rating_sum + :rating, rating = (rating_sum + :rating) / (review_count + 1), "
+                + stars + " = " + stars + " + 1, version = version + 1, updated_at = :updatedAt where id = :id");
+        update.setParameter("rating", (double) rating);
+        update.setParameter("updatedAt", new Timestamp(System.currentTimeMillis()));
+        update.setParameter("id", id);
+        update.execute();
+    }
+
+    // Reverse of addRating, for reviews deleted along with their user
+    static void removeRating(Long id, Float rating) {
+        String stars = "stars" + Math.max(1, Math.round(rating));
+        SqlUpdate update = Ebean.createSqlUpdate("update recipes set review_count = review_count - 1,"
+                + " rating_sum = rating_sum - :rating, rating = case when review_count > 1"
+                + " then (rating_sum - :rating) / (review_count - 1) end, "
+                + stars + " = " + stars + " - 1, version = version + 1, updated_at = :updatedAt where id = :id");
+        update.setParameter("rating", (double) rating);
+        update.setParameter("updatedAt", new Timestamp(System.currentTimeMillis()));
+        update.setParameter("id", id);
+        update.execute();
+    }
+
+    // Form in which the names of new ingredients and tags are stored
+    public static String toCamelCase(String string) {
         return string.substring(0, 1).toUpperCase()
                 + string.substring(1, string.length()).toLowerCase();
     }
@@ -324,6 +719,10 @@ public class Recipe extends BaseModel {
         return Json.toJson(this);
     }
 
+    public RecipeSummary toSummary(Set<String> expand) {
+        return new RecipeSummary(this, expand);
+    }
+
     public String getName() {
         return name;
     }
@@ -396,6 +795,23 @@ public class Recipe extends BaseModel {
         this.tags = tags;
     }
 
+    public Double getRating() {
+        return rating;
+    }
+
+    public int getReviewCount() {
+        return (reviewCount != null) ? reviewCount : 0;
+    }
+
+    // Number of reviews rating the recipe with one to five stars
+    public int[] getRatingHistogram() {
+        return new int[] { count(stars1), count(stars2), count(stars3), count(stars4), count(stars5) };
+    }
+
+    private static int count(Integer stars) {
+        return (stars != null) ? stars : 0;
+    }
+
     public List<Review> getReviews() {
         return reviews;
     }
@@ -0,0 +1,133 @@
+package models;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * What recipe listings show of every recipe, built from a partially loaded
+ * recipe so that rendering it never loads the rest. Properties that were
+ * not expanded are left out.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class RecipeSummary {
+
+    private final Long id;
+    private final Long version;
+    private final String name;
+    private final Recipe.Type type;
+    private final Recipe.Difficulty difficulty;
+    private final String kitchen;
+    private final Integer rations;
+    private final Integer time;
+    private final Double rating;
+    private final int reviewCount;
+
+    private String description;
+    private String steps;
+    private User user;
+    private List<Ingredient> ingredients;
+    private List<Tag> tags;
+    private List<Review> reviews;
+
+    RecipeSummary(Recipe recipe, Set<String> expand) {
+        this.id = recipe.getId();
+        this.version = recipe.getVersion();
+        this.name = recipe.getName();
+        this.type = recipe.type;
+        this.difficulty = recipe.difficulty;
+        this.kitchen = recipe.getKitchen();
+        this.rations = recipe.getRations();
+        this.time = recipe.getTime();
+        this.rating = recipe.getRating();
+        this.reviewCount = recipe.getReviewCount();
+
+        if (expand.contains("description")) {
+            this.description = recipe.getDescription();
+        }
+        if (expand.contains("steps")) {
+            this.steps = recipe.getSteps();
+        }
+        if (expand.contains("user")) {
+            this.user = recipe.getUser();
+        }
+        if (expand.contains("ingredients")) {
+            this.ingredients = recipe.getIngredients();
+        }
+        if (expand.contains("tags")) {
+            this.tags = recipe.getTags();
+        }
+        if (expand.contains("reviews")) {
+            this.reviews = recipe.getReviews();
+        }
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    @JsonIgnore
+    public Long getVersion() {
+        return version;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Recipe.Type getType() {
+        return type;
+    }
+
+    public Recipe.Difficulty getDifficulty() {
+        return difficulty;
+    }
+
+    public String getKitchen() {
+        return kitchen;
+    }
+
+    public Integer getRations() {
+        return rations;
+    }
+
+    public Integer getTime() {
+        return time;
+    }
+
+    // Null until the first review, but always shown
+    @JsonInclude(JsonInclude.Include.ALWAYS)
+    public Double getRating() {
+        return rating;
+    }
+
+    public int getReviewCount() {
+        return reviewCount;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getSteps() {
+        return steps;
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public List<Ingredient> getIngredients() {
+        return ingredients;
+    }
+
+    public List<Tag> getTags() {
+        return tags;
+    }
+
+    public List<Review> getReviews() {
+        return reviews;
+    }
+}
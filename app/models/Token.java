@@ -33,6 +33,7 @@ public class Token extends BaseModel {
     public static Token findByToken(String token) {
         return find
                 .query()
+                .fetch("user")
                 .where()
                     .eq("token", token)
                 .findOne();
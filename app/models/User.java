@@ -7,6 +7,7 @@ import io.ebean.Ebean;
 import io.ebean.ExpressionList;
 import io.ebean.Finder;
 import io.ebean.PagedList;
+import io.ebean.SqlUpdate;
 import play.data.validation.Constraints.MaxLength;
 import play.data.validation.Constraints.Pattern;
 import play.data.validation.Constraints.Required;
@@ -14,8 +15,11 @@ import play.libs.Json;
 import validators.DNI;
 
 import javax.persistence.*;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 @Entity
 @Table(name = "users")
@@ -49,6 +53,14 @@ public class User extends BaseModel {
     private static final Finder<Long, User> find =
             new Finder<>(User.class);
 
+    // Properties that user listings can be sorted by when paginated by keyset
+    public static final Map<String, Keyset.SortProperty<User>> SORT_PROPERTIES = new HashMap<>();
+    static {
+        SORT_PROPERTIES.put("id", Keyset.SortProperty.of(Long.class, User::getId));
+        SORT_PROPERTIES.put("name", Keyset.SortProperty.of(String.class, User::getName));
+        SORT_PROPERTIES.put("city", Keyset.SortProperty.of(String.class, User::getCity));
+    }
+
     public User() {
         super();
     }
@@ -57,6 +69,31 @@ public class User extends BaseModel {
         return find.byId(id);
     }
 
+    // Checked on the id alone, with no columns or associations loaded
+    public static boolean exists(Long id) {
+        return find
+                .query()
+                .where()
+                    .idEq(id)
+                .findCount() > 0;
+    }
+
+    // Reference to an existing user, loaded lazily on first property access
+    public static User getReference(Long id) {
+        return find.ref(id);
+    }
+
+    public static Long findTokenId(Long id) {
+        User user = find
+                .query()
+                .select("token")
+                .where()
+                    .idEq(id)
+                .findOne();
+
+        return (user != null && user.getToken() != null) ? user.getToken().getId() : null;
+    }
+
     private static User findByDni(String dni) {
         return find
                 .query()
@@ -65,6 +102,14 @@ public class User extends BaseModel {
                 .findOne();
     }
 
+    public static Keyset.Page<User> findAll(Keyset keyset) {
+        return keyset.fetch(find.query().where(), PAGE_SIZE, SORT_PROPERTIES);
+    }
+
+    public static Keyset.Page<User> findBy(String name, String city, Keyset keyset) {
+        return keyset.fetch(searchQuery(name, city, null), PAGE_SIZE, SORT_PROPERTIES);
+    }
+
     public static PagedList<User> findAll(Integer page) {
         return find
                 .query()
@@ -73,7 +118,54 @@ public class User extends BaseModel {
                 .findPagedList();
     }
 
-    public static PagedList<User> findBy(String name, String city, String[] sortBy, Integer page) {
+    public static PagedList<User> findAll(Integer page, Fieldset fields) {
+        return find
+                .query()
+                .select(fields.getSelect())
+                .setMaxRows(PAGE_SIZE)
+                .setFirstRow(PAGE_SIZE * page)
+                .findPagedList();
+    }
+
+    // Page of the users matching the filters, with nothing but their ids loaded
+    public static PagedList<User> findIdsBy(String name, String city, String[] sortBy, Integer page) {
+        return searchQuery(name, city, sortBy)
+                .query()
+                .select("id")
+                .setMaxRows(PAGE_SIZE)
+                .setFirstRow(PAGE_SIZE * page)
+                .findPagedList();
+    }
+
+    // Users with the given ids, in the same order
+    public static List<User> findByIds(List<Long> ids) {
+        return inOrder(ids, find
+                .query()
+                .where()
+                    .in("id", ids)
+                .findMap());
+    }
+
+    // Users with the given ids, in the same order, with nothing but the given fields loaded
+    public static List<User> findByIds(List<Long> ids, Fieldset fields) {
+        return inOrder(ids, find
+                .query()
+                .select(fields.getSelect())
+                .where()
+                    .in("id", ids)
+                .findMap());
+    }
+
+    public static User findById(Long id, Fieldset fields) {
+        return find
+                .query()
+                .select(fields.getSelect())
+                .where()
+                    .idEq(id)
+                .findOne();
+    }
+
+    private static ExpressionList<User> searchQuery(String name, String city, String[] sortBy) {
         ExpressionList<User> searchQuery = find
                 .query()
                 .where();
@@ -89,11 +181,7 @@ public class User extends BaseModel {
             searchQuery.query().orderBy(sortBy[0] + " " + sortBy[1]);
         }
 
-        return searchQuery
-                .query()
-                .setMaxRows(PAGE_SIZE)
-                .setFirstRow(PAGE_SIZE * page)
-                .findPagedList();
+        return searchQuery;
     }
 
     public boolean validateAndSave() {
@@ -124,6 +212,35 @@ public class User extends BaseModel {
         return true;
     }
 
+    public static boolean isDniTaken(String dni, Long excludedId) {
+        return find
+                .query()
+                .where()
+                    .ieq("dni", dni)
+                    .ne("id", excludedId)
+                .findCount() > 0;
+    }
+
+    /**
+     * Updates the modifiable properties of a user in a single statement, as
+     * long as it still has the given version. Returns whether the user was
+     * updated.
+     */
+    public boolean updateIfVersion(Long version) {
+        SqlUpdate update = Ebean.createSqlUpdate("update users"
+                + " set dni = :dni, name = :name, city = :city,"
+                + " version = version + 1, updated_at = :updatedAt"
+                + " where id = :id and version = :version");
+        update.setParameter("dni", dni);
+        update.setParameter("name", name);
+        update.setParameter("city", city);
+        update.setParameter("updatedAt", new Timestamp(System.currentTimeMillis()));
+        update.setParameter("id", getId());
+        update.setParameter("version", version);
+
+        return update.execute() == 1;
+    }
+
     // There can be no more than one user with same dni
     private boolean isUserDuplicated() {
         User user = User.findByDni(this.dni);
@@ -151,6 +268,37 @@ public class User extends BaseModel {
         return this.getToken().getToken();
     }
 
+    /**
+     * Deletes the user along with its recipes and reviews, taking the
+     * ratings of its reviews of other users' recipes out of their
+     * aggregates in the same transaction. Returns the ids of those recipes,
+     * or null if the user could not be deleted.
+     */
+    public List<Long> deleteWithRatings() {
+        List<Long> rated = new ArrayList<>();
+
+        Ebean.beginTransaction();
+        try {
+            for (Review review : this.getReviews()) {
+                Recipe recipe = review.getRecipe();
+                // Own recipes are deleted with the user
+                if (!recipe.getUser().getId().equals(this.getId())) {
+                    Recipe.removeRating(recipe.getId(), review.getRating());
+                    rated.add(recipe.getId());
+                }
+            }
+            if (!this.delete()) {
+                return null;
+            }
+
+            Ebean.commitTransaction();
+        } finally {
+            Ebean.endTransaction();
+        }
+
+        return rated;
+    }
+
     private void generateToken() {
         Token token = new Token();
         token.setToken(Token.generateToken());
@@ -0,0 +1,170 @@
+package services;
+
+import com.typesafe.config.Config;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import play.db.Database;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Adaptive limit of the requests handled at once, so that once the
+ * database saturates the excess is rejected on arrival instead of piling
+ * up until it times out.
+ *
+ * The limit follows AIMD: it grows by one for every limit's worth of
+ * requests completed while the limit is at least half used and the
+ * database keeps up, and it is cut by the backoff factor while work waits
+ * in the bulkheads longer than tolerated or threads wait for a connection
+ * of the pool.
+ *
+ * Every priority may only fill its share of the limit, so anonymous
+ * requests are rejected first and authenticated writes last.
+ */
+@Singleton
+public class AdmissionControl {
+
+    public enum Priority {
+        ANONYMOUS, READ, WRITE
+    }
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoff;
+    private final long toleranceNanos;
+    private final Map<Priority, Double> shares;
+
+    private final LongSupplier queueingDelay;
+    private final IntSupplier poolWaiting;
+
+    private double limit;
+    private int inFlight;
+    private long lastBackoff;
+
+    private final Map<Priority, AtomicLong> admitted = new EnumMap<>(Priority.class);
+    private final Map<Priority, AtomicLong> rejected = new EnumMap<>(Priority.class);
+
+    @Inject
+    public AdmissionControl(Config config, Bulkheads bulkheads, Database database) {
+        this(config.getInt("recipedia.admission.initial-limit"),
+                config.getInt("recipedia.admission.min-limit"),
+                config.getInt("recipedia.admission.max-limit"),
+                config.getDouble("recipedia.admission.backoff"),
+                config.getDuration("recipedia.admission.queueing-delay-tolerance", TimeUnit.NANOSECONDS),
+                getShares(config.getConfig("recipedia.admission.shares")),
+                bulkheads::getQueueingDelay, () -> countThreadsAwaitingConnection(database.getDataSource()));
+    }
+
+    public AdmissionControl(int initialLimit, int minLimit, int maxLimit, double backoff, long toleranceNanos,
+                            Map<Priority, Double> shares, LongSupplier queueingDelay, IntSupplier poolWaiting) {
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoff = backoff;
+        this.toleranceNanos = toleranceNanos;
+        this.shares = shares;
+        this.queueingDelay = queueingDelay;
+        this.poolWaiting = poolWaiting;
+        this.lastBackoff = System.nanoTime() - toleranceNanos;
+
+        for (Priority priority : Priority.values()) {
+            admitted.put(priority, new AtomicLong());
+            rejected.put(priority, new AtomicLong());
+        }
+    }
+
+    private static Map<Priority, Double> getShares(Config config) {
+        Map<Priority, Double> shares = new EnumMap<>(Priority.class);
+        for (Priority priority : Priority.values()) {
+            shares.put(priority, config.getDouble(priority.name().toLowerCase(Locale.ROOT)));
+        }
+
+        return shares;
+    }
+
+    /**
+     * Admits a request of the given priority if its share of the limit is
+     * not used up yet. Admitted requests must be released once handled.
+     */
+    public boolean tryAcquire(Priority priority) {
+        synchronized (this) {
+            if (inFlight >= Math.max(1, (int) (limit * shares.get(priority)))) {
+                rejected.get(priority).incrementAndGet();
+                return false;
+            }
+            inFlight++;
+        }
+
+        admitted.get(priority).incrementAndGet();
+        return true;
+    }
+
+    // Releases an admitted request, adapting the limit to how the database keeps up
+    public void release() {
+        boolean congested = queueingDelay.getAsLong() > toleranceNanos || poolWaiting.getAsInt() > 0;
+
+        synchronized (this) {
+            // The limit is cut at most once per tolerated delay, so that each cut has time to take effect
+            long now = System.nanoTime();
+            if (congested) {
+                if (now - lastBackoff >= toleranceNanos) {
+                    limit = Math.max(minLimit, limit * backoff);
+                    lastBackoff = now;
+                }
+            } else if (inFlight * 2 >= limit) {
+                // One more per limit's worth of completed requests, that is about one per round trip
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+            inFlight--;
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public long getAdmittedCount(Priority priority) {
+        return admitted.get(priority).get();
+    }
+
+    public long getRejectedCount(Priority priority) {
+        return rejected.get(priority).get();
+    }
+
+    // Recent queueing delay of the database work, in nanoseconds
+    public long getQueueingDelay() {
+        return queueingDelay.getAsLong();
+    }
+
+    public int getThreadsAwaitingConnection() {
+        return poolWaiting.getAsInt();
+    }
+
+    // Threads waiting for a connection of the pool, or zero if it is not a HikariCP one
+    private static int countThreadsAwaitingConnection(DataSource dataSource) {
+        try {
+            if (dataSource.isWrapperFor(HikariDataSource.class)) {
+                HikariPoolMXBean pool = dataSource.unwrap(HikariDataSource.class).getHikariPoolMXBean();
+                return (pool != null) ? pool.getThreadsAwaitingConnection() : 0;
+            }
+        } catch (SQLException e) {
+            return 0;
+        }
+
+        return 0;
+    }
+}
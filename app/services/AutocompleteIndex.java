@@ -0,0 +1,118 @@
+package services;
+
+import models.Ingredient;
+import models.Tag;
+
+import javax.inject.Singleton;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Completions of ingredient and tag names, most used first, so that
+ * clients reuse existing names instead of creating near duplicates.
+ *
+ * The index is built from the database the first time it is used, and
+ * must be kept up to date by calling the add and remove methods after
+ * every ingredient or tag is attached to or detached from a recipe.
+ */
+@Singleton
+public class AutocompleteIndex {
+
+    public static final int MAX_SUGGESTIONS = 10;
+
+    private final CompletionTrie ingredients = new CompletionTrie(MAX_SUGGESTIONS);
+    private final CompletionTrie tags = new CompletionTrie(MAX_SUGGESTIONS);
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean built;
+
+    public List<String> completeIngredient(String prefix, int limit) {
+        return complete(ingredients, prefix, limit);
+    }
+
+    public List<String> completeTag(String prefix, int limit) {
+        return complete(tags, prefix, limit);
+    }
+
+    // Whether lookups can be answered without reading the database
+    public boolean isBuilt() {
+        return built;
+    }
+
+    public void addIngredient(String name) {
+        update(ingredients, name, 1);
+    }
+
+    public void removeIngredient(String name) {
+        update(ingredients, name, -1);
+    }
+
+    public void addTag(String name) {
+        update(tags, name, 1);
+    }
+
+    public void removeTag(String name) {
+        update(tags, name, -1);
+    }
+
+    /**
+     * Stops counting the uses of the given ingredients and tags by a deleted
+     * recipe, whose names stay available for completion.
+     */
+    public void removeRecipe(Collection<Ingredient> recipeIngredients, Collection<Tag> recipeTags) {
+        for (Ingredient ingredient : recipeIngredients) {
+            removeIngredient(ingredient.getName());
+        }
+        for (Tag tag : recipeTags) {
+            removeTag(tag.getName());
+        }
+    }
+
+    private List<String> complete(CompletionTrie trie, String prefix, int limit) {
+        build();
+
+        lock.readLock().lock();
+        try {
+            return trie.complete(prefix, Math.max(0, Math.min(limit, MAX_SUGGESTIONS)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Writes before the index is built are in what it reads; building holds the lock, so later ones wait for it.
+    // A use committed just as the build starts may be counted twice, which only nudges its ranking
+    private void update(CompletionTrie trie, String name, int delta) {
+        lock.writeLock().lock();
+        try {
+            if (built) {
+                trie.add(name, delta);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void build() {
+        if (built) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (!built) {
+                for (Map.Entry<String, Integer> usage : Ingredient.findUsage().entrySet()) {
+                    ingredients.add(usage.getKey(), usage.getValue());
+                }
+                for (Map.Entry<String, Integer> usage : Tag.findUsage().entrySet()) {
+                    tags.add(usage.getKey(), usage.getValue());
+                }
+                built = true;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
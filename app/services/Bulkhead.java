@@ -0,0 +1,116 @@
+package services;
+
+import play.libs.concurrent.HttpExecution;
+import scala.concurrent.ExecutionContext$;
+import scala.concurrent.ExecutionContextExecutor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Isolated share of the blocking database work: a fixed pool of threads,
+ * as many as connections this kind of work may hold at once, and a bounded
+ * queue of the work waiting for them. Work arriving with the queue full
+ * is rejected right away instead of waiting, so that a burst of one kind
+ * of requests never delays the others.
+ */
+public class Bulkhead {
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final ExecutionContextExecutor context;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    // Moving average of the time work waits in the queue before it starts
+    private final AtomicLong queueingDelay = new AtomicLong();
+
+    public Bulkhead(String name, int threads, int queueSize) {
+        this.name = name;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), new NamedThreadFactory("bulkhead-" + name),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.context = ExecutionContext$.MODULE$.fromExecutor(executor);
+    }
+
+    /**
+     * Runs the given work on this bulkhead, with the HTTP context of the
+     * current request. The returned stage is null if the work was rejected
+     * because the queue is full.
+     */
+    public <T> CompletionStage<T> supply(Supplier<T> work) {
+        long submitted = System.nanoTime();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                recordQueueingDelay(System.nanoTime() - submitted);
+                return work.get();
+            }, HttpExecution.fromThread(context));
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            return null;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Recent time that work waits in the queue before it starts, in
+     * nanoseconds, or zero while nothing is waiting, so that a bulkhead
+     * left idle after a burst does not keep reporting it.
+     */
+    public long getQueueingDelay() {
+        return executor.getQueue().isEmpty() ? 0 : queueingDelay.get();
+    }
+
+    // Each sample weighs an eighth of the average, so that it follows recent load
+    private void recordQueueingDelay(long delay) {
+        queueingDelay.accumulateAndGet(delay, (average, sample) -> average + (sample - average) / 8);
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
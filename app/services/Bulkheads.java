@@ -0,0 +1,79 @@
+package services;
+
+import com.typesafe.config.Config;
+import play.Logger;
+import play.inject.ApplicationLifecycle;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Bulkheads splitting the database work by kind of request, configured
+ * under recipedia.bulkheads: searches and listings, writes, and reads of
+ * single resources. Their threads together should not outnumber the
+ * connections of the pool, so that each one always gets its share.
+ */
+@Singleton
+public class Bulkheads {
+
+    private final Bulkhead search;
+    private final Bulkhead write;
+    private final Bulkhead read;
+
+    @Inject
+    public Bulkheads(Config config, ApplicationLifecycle lifecycle) {
+        this.search = create(config, "search");
+        this.write = create(config, "write");
+        this.read = create(config, "read");
+
+        int threads = search.getThreads() + write.getThreads() + read.getThreads();
+        int connections = config.getInt("play.db.prototype.hikaricp.maximumPoolSize");
+        if (threads > connections) {
+            Logger.warn("Bulkheads have {} threads for {} database connections", threads, connections);
+        }
+
+        lifecycle.addStopHook(() -> {
+            for (Bulkhead bulkhead : getAll()) {
+                bulkhead.shutdown();
+            }
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    private static Bulkhead create(Config config, String name) {
+        Config bulkhead = config.getConfig("recipedia.bulkheads." + name);
+        return new Bulkhead(name, bulkhead.getInt("threads"), bulkhead.getInt("queue-size"));
+    }
+
+    // Searches and listings of collections, which may run expensive queries
+    public Bulkhead search() {
+        return search;
+    }
+
+    // Creations, updates and deletions
+    public Bulkhead write() {
+        return write;
+    }
+
+    // Reads of single resources
+    public Bulkhead read() {
+        return read;
+    }
+
+    public List<Bulkhead> getAll() {
+        return Arrays.asList(search, write, read);
+    }
+
+    // Longest recent queueing delay among the bulkheads, in nanoseconds
+    public long getQueueingDelay() {
+        long delay = 0;
+        for (Bulkhead bulkhead : getAll()) {
+            delay = Math.max(delay, bulkhead.getQueueingDelay());
+        }
+
+        return delay;
+    }
+}
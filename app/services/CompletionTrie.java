@@ -0,0 +1,102 @@
+package services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prefix tree of weighted names, where every node keeps the heaviest names
+ * below it so that completing a prefix only walks the prefix itself.
+ *
+ * Names are matched ignoring case and accents. Not thread safe.
+ */
+public class CompletionTrie {
+
+    private static final Comparator<Node> BY_WEIGHT = Comparator
+            .comparingInt((Node node) -> -node.weight)
+            .thenComparing(node -> node.name);
+
+    private final int maxSuggestions;
+    private final Node root = new Node();
+
+    public CompletionTrie(int maxSuggestions) {
+        this.maxSuggestions = maxSuggestions;
+    }
+
+    /**
+     * Adds the given delta to the weight of a name, inserting the name if it
+     * is new. Weights never go below zero.
+     */
+    public void add(String name, int delta) {
+        String key = TextAnalyzer.fold(name.trim());
+        if (key.isEmpty()) {
+            return;
+        }
+
+        List<Node> path = new ArrayList<>(key.length() + 1);
+        Node node = root;
+        path.add(node);
+        for (int i = 0; i < key.length(); i++) {
+            node = node.children.computeIfAbsent(key.charAt(i), c -> new Node());
+            path.add(node);
+        }
+
+        if (node.name == null) {
+            node.name = name.trim();
+        }
+        node.weight = Math.max(0, node.weight + delta);
+
+        // Only the nodes on the path can see their heaviest names change
+        for (int i = path.size() - 1; i >= 0; i--) {
+            updateTop(path.get(i));
+        }
+    }
+
+    /**
+     * Returns up to the given number of names starting with the prefix,
+     * heaviest first.
+     */
+    public List<String> complete(String prefix, int limit) {
+        String key = TextAnalyzer.fold(prefix.trim());
+        Node node = root;
+        for (int i = 0; i < key.length() && node != null; i++) {
+            node = node.children.get(key.charAt(i));
+        }
+
+        if (node == null) {
+            return Collections.emptyList();
+        }
+
+        List<String> names = new ArrayList<>(Math.min(limit, node.top.size()));
+        for (int i = 0; i < node.top.size() && i < limit; i++) {
+            names.add(node.top.get(i).name);
+        }
+
+        return names;
+    }
+
+    private void updateTop(Node node) {
+        List<Node> candidates = new ArrayList<>();
+        if (node.name != null) {
+            candidates.add(node);
+        }
+        for (Node child : node.children.values()) {
+            candidates.addAll(child.top);
+        }
+
+        candidates.sort(BY_WEIGHT);
+        node.top = (candidates.size() > maxSuggestions)
+                ? new ArrayList<>(candidates.subList(0, maxSuggestions)) : candidates;
+    }
+
+    private static class Node {
+
+        private final Map<Character, Node> children = new HashMap<>();
+        private String name;
+        private int weight;
+        private List<Node> top = Collections.emptyList();
+    }
+}
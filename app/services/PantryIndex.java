@@ -0,0 +1,205 @@
+package services;
+
+import models.Ingredient;
+import models.Recipe;
+import models.Tag;
+import org.roaringbitmap.RoaringBitmap;
+
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory index of the ingredients and tags of every recipe, as
+ * compressed bitmaps of the ids of the recipes using each of them, to
+ * find what can be cooked with what is in the pantry without joining the
+ * ingredients and tags tables.
+ *
+ * The index is built from the database the first time it is used, and
+ * must be kept up to date by calling {@link #addIngredient},
+ * {@link #removeIngredient}, {@link #addTag}, {@link #removeTag} and
+ * {@link #remove(Long)} after every write.
+ */
+@Singleton
+public class PantryIndex {
+
+    private final Map<String, RoaringBitmap> ingredients = new HashMap<>();
+    private final Map<String, RoaringBitmap> tags = new HashMap<>();
+    private final Map<Integer, Set<String>> recipeIngredients = new HashMap<>();
+    private final Map<Integer, Set<String>> recipeTags = new HashMap<>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean built;
+
+    /**
+     * Returns the ids of the recipes that use some of the given ingredients,
+     * have all the given tags and need at most the given number of
+     * ingredients that are not in the pantry. Recipes missing fewer
+     * ingredients come first, then those using more of the pantry.
+     */
+    public List<Long> search(Collection<String> pantry, Collection<String> requiredTags, int maxMissing) {
+        build();
+
+        lock.readLock().lock();
+        try {
+            List<RoaringBitmap> used = new ArrayList<>();
+            for (String ingredient : pantry) {
+                RoaringBitmap recipes = ingredients.get(normalize(ingredient));
+                if (recipes != null) {
+                    used.add(recipes);
+                }
+            }
+
+            RoaringBitmap candidates = RoaringBitmap.or(used.iterator());
+            for (String tag : requiredTags) {
+                RoaringBitmap recipes = tags.get(normalize(tag));
+                if (recipes == null) {
+                    return new ArrayList<>();
+                }
+                candidates.and(recipes);
+            }
+
+            // Pantry ingredients used by each candidate
+            Map<Integer, Integer> matches = new HashMap<>();
+            for (RoaringBitmap recipes : used) {
+                for (int id : RoaringBitmap.and(candidates, recipes)) {
+                    matches.merge(id, 1, Integer::sum);
+                }
+            }
+
+            List<int[]> found = new ArrayList<>();
+            for (Map.Entry<Integer, Integer> match : matches.entrySet()) {
+                int missing = recipeIngredients.get(match.getKey()).size() - match.getValue();
+                if (missing <= maxMissing) {
+                    found.add(new int[] { match.getKey(), missing, match.getValue() });
+                }
+            }
+            found.sort(Comparator.<int[]>comparingInt(f -> f[1])
+                    .thenComparingInt(f -> -f[2])
+                    .thenComparingInt(f -> f[0]));
+
+            List<Long> ids = new ArrayList<>(found.size());
+            for (int[] f : found) {
+                ids.add((long) f[0]);
+            }
+
+            return ids;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void addIngredient(Long recipeId, String ingredient) {
+        update(() -> add(ingredients, recipeIngredients, toInt(recipeId), normalize(ingredient)));
+    }
+
+    public void removeIngredient(Long recipeId, String ingredient) {
+        update(() -> remove(ingredients, recipeIngredients, toInt(recipeId), normalize(ingredient)));
+    }
+
+    public void addTag(Long recipeId, String tag) {
+        update(() -> add(tags, recipeTags, toInt(recipeId), normalize(tag)));
+    }
+
+    public void removeTag(Long recipeId, String tag) {
+        update(() -> remove(tags, recipeTags, toInt(recipeId), normalize(tag)));
+    }
+
+    public void remove(Long recipeId) {
+        int id = toInt(recipeId);
+        update(() -> {
+            for (String ingredient : new ArrayList<>(recipeIngredients.getOrDefault(id, new HashSet<>()))) {
+                remove(ingredients, recipeIngredients, id, ingredient);
+            }
+            for (String tag : new ArrayList<>(recipeTags.getOrDefault(id, new HashSet<>()))) {
+                remove(tags, recipeTags, id, tag);
+            }
+        });
+    }
+
+    // Writes before the index is built are in what it reads; building holds the lock, so later ones wait for it
+    private void update(Runnable change) {
+        lock.writeLock().lock();
+        try {
+            if (built) {
+                change.run();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void build() {
+        if (built) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (!built) {
+                Recipe.findEachComposition(recipe -> {
+                    int id = toInt(recipe.getId());
+                    for (Ingredient ingredient : recipe.getIngredients()) {
+                        add(ingredients, recipeIngredients, id, normalize(ingredient.getName()));
+                    }
+                    for (Tag tag : recipe.getTags()) {
+                        add(tags, recipeTags, id, normalize(tag.getName()));
+                    }
+                });
+                for (RoaringBitmap recipes : ingredients.values()) {
+                    recipes.runOptimize();
+                }
+                for (RoaringBitmap recipes : tags.values()) {
+                    recipes.runOptimize();
+                }
+                built = true;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void add(Map<String, RoaringBitmap> bitmaps, Map<Integer, Set<String>> names,
+                            int id, String name) {
+        bitmaps.computeIfAbsent(name, n -> new RoaringBitmap()).add(id);
+        names.computeIfAbsent(id, i -> new HashSet<>()).add(name);
+    }
+
+    private static void remove(Map<String, RoaringBitmap> bitmaps, Map<Integer, Set<String>> names,
+                               int id, String name) {
+        RoaringBitmap recipes = bitmaps.get(name);
+        if (recipes != null) {
+            recipes.remove(id);
+            if (recipes.isEmpty()) {
+                bitmaps.remove(name);
+            }
+        }
+
+        Set<String> recipeNames = names.get(id);
+        if (recipeNames != null) {
+            recipeNames.remove(name);
+            if (recipeNames.isEmpty()) {
+                names.remove(id);
+            }
+        }
+    }
+
+    // Ingredients and tags are looked up ignoring case, like in the database
+    private static String normalize(String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    // Bitmaps hold 32 bit values, far beyond the number of recipes
+    private static int toInt(Long id) {
+        return Math.toIntExact(id);
+    }
+}
@@ -0,0 +1,243 @@
+package services;
+
+import models.Recipe;
+
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index over the name, kitchen and description of the
+ * recipes, ranked with BM25.
+ *
+ * Only the {@value #MAX_RESULTS} most relevant matches of a query are
+ * ranked, so that is as far as its results can be paged, and searches
+ * narrowed down by other filters only look among them. The total of an
+ * unfiltered search still counts every match.
+ *
+ * The index is built from the database the first time it is used, and
+ * must be kept up to date by calling {@link #index(Recipe)},
+ * {@link #update(Long, Map)} and {@link #remove(Long)} after every write.
+ */
+@Singleton
+public class RecipeSearchIndex {
+
+    public static final int MAX_RESULTS = 1000;
+
+    // Least relevant first, and among equally relevant ones the latest
+    private static final Comparator<Map.Entry<Long, Double>> BY_RELEVANCE = Comparator
+            .comparing((Map.Entry<Long, Double> e) -> e.getValue())
+            .thenComparing(Map.Entry::getKey, Comparator.reverseOrder());
+
+    private static final int NAME_WEIGHT = 3;
+    private static final int KITCHEN_WEIGHT = 2;
+    private static final int DESCRIPTION_WEIGHT = 1;
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private final Map<String, Map<Long, Integer>> postings = new HashMap<>();
+    private final Map<Long, Document> documents = new HashMap<>();
+    private long totalLength;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean built;
+
+    /**
+     * Returns the ids of the recipes matching any of the terms of the query,
+     * mapped to their relevance.
+     */
+    public Map<Long, Double> score(String query) {
+        build();
+
+        lock.readLock().lock();
+        try {
+            Map<Long, Double> scores = new HashMap<>();
+            double averageLength = documents.isEmpty() ? 0 : (double) totalLength / documents.size();
+            for (String term : TextAnalyzer.tokenize(query)) {
+                Map<Long, Integer> posting = postings.get(term);
+                if (posting == null) {
+                    continue;
+                }
+
+                double idf = Math.log(1 + (documents.size() - posting.size() + 0.5) / (posting.size() + 0.5));
+                for (Map.Entry<Long, Integer> entry : posting.entrySet()) {
+                    double tf = entry.getValue();
+                    double norm = K1 * (1 - B + B * documents.get(entry.getKey()).length / averageLength);
+                    scores.merge(entry.getKey(), idf * tf * (K1 + 1) / (tf + norm), Double::sum);
+                }
+            }
+
+            return scores;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the ids of up to {@value #MAX_RESULTS} of the given matches,
+     * most relevant first. Only the kept ones are ever ordered, in a heap
+     * bounded by that size.
+     */
+    public static List<Long> rank(Map<Long, Double> scores) {
+        PriorityQueue<Map.Entry<Long, Double>> top = new PriorityQueue<>(
+                Math.min(scores.size(), MAX_RESULTS) + 1, BY_RELEVANCE);
+        for (Map.Entry<Long, Double> score : scores.entrySet()) {
+            if (top.size() < MAX_RESULTS) {
+                top.add(score);
+            } else if (BY_RELEVANCE.compare(score, top.peek()) > 0) {
+                top.poll();
+                top.add(score);
+            }
+        }
+
+        List<Long> ids = new ArrayList<>(top.size());
+        while (!top.isEmpty()) {
+            ids.add(top.poll().getKey());
+        }
+        Collections.reverse(ids);
+
+        return ids;
+    }
+
+    public void index(Recipe recipe) {
+        index(recipe.getId(), recipe.getName(), recipe.getKitchen(), recipe.getDescription());
+    }
+
+    /**
+     * Reindexes a recipe from the properties that changed in a partial update.
+     */
+    public void update(Long id, Map<String, Object> changes) {
+        lock.writeLock().lock();
+        try {
+            if (!built) {
+                return;
+            }
+
+            Document old = documents.get(id);
+            if (old == null) {
+                return;
+            }
+
+            indexLocked(id,
+                    changes.containsKey("name") ? (String) changes.get("name") : old.name,
+                    changes.containsKey("kitchen") ? (String) changes.get("kitchen") : old.kitchen,
+                    changes.containsKey("description") ? (String) changes.get("description") : old.description);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(Long id) {
+        lock.writeLock().lock();
+        try {
+            if (built) {
+                removeLocked(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return documents.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Writes before the index is built are in what it reads; building holds the lock, so later ones wait for it
+    private void index(Long id, String name, String kitchen, String description) {
+        lock.writeLock().lock();
+        try {
+            if (built) {
+                indexLocked(id, name, kitchen, description);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void build() {
+        if (built) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (!built) {
+                Recipe.findEachText(recipe -> indexLocked(recipe.getId(),
+                        recipe.getName(), recipe.getKitchen(), recipe.getDescription()));
+                built = true;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void indexLocked(Long id, String name, String kitchen, String description) {
+        removeLocked(id);
+
+        Map<String, Integer> terms = new HashMap<>();
+        addTerms(terms, name, NAME_WEIGHT);
+        addTerms(terms, kitchen, KITCHEN_WEIGHT);
+        addTerms(terms, description, DESCRIPTION_WEIGHT);
+
+        int length = 0;
+        for (Map.Entry<String, Integer> term : terms.entrySet()) {
+            postings.computeIfAbsent(term.getKey(), t -> new HashMap<>()).put(id, term.getValue());
+            length += term.getValue();
+        }
+
+        documents.put(id, new Document(name, kitchen, description, terms.keySet().toArray(new String[0]), length));
+        totalLength += length;
+    }
+
+    private void removeLocked(Long id) {
+        Document old = documents.remove(id);
+        if (old == null) {
+            return;
+        }
+
+        for (String term : old.terms) {
+            Map<Long, Integer> posting = postings.get(term);
+            posting.remove(id);
+            if (posting.isEmpty()) {
+                postings.remove(term);
+            }
+        }
+        totalLength -= old.length;
+    }
+
+    private static void addTerms(Map<String, Integer> terms, String text, int weight) {
+        for (String term : TextAnalyzer.tokenize(text)) {
+            terms.merge(term, weight, Integer::sum);
+        }
+    }
+
+    private static class Document {
+
+        private final String name;
+        private final String kitchen;
+        private final String description;
+        private final String[] terms;
+        private final int length;
+
+        private Document(String name, String kitchen, String description, String[] terms, int length) {
+            this.name = name;
+            this.kitchen = kitchen;
+            this.description = description;
+            this.terms = terms;
+            this.length = length;
+        }
+    }
+}
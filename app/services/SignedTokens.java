@@ -0,0 +1,191 @@
+package services;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import models.User;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issues and verifies self-contained access tokens of the form
+ * <code>s1.&lt;userId&gt;.&lt;generation&gt;.&lt;hmac&gt;</code>.
+ *
+ * The generation is the id of the user's current row in the tokens table,
+ * which changes every time the token is reset. A signed token is checked
+ * with the HMAC alone; the database is only consulted when the current
+ * generation of its user is not known yet, and generations are kept up to
+ * date by {@link #rotate(Long, Long)} and {@link #revoke(Long)}.
+ *
+ * Tokens are signed with a secret of their own, and they cannot be enabled
+ * while it is still the default one shipped in the configuration.
+ */
+@Singleton
+public class SignedTokens {
+
+    private static final String PREFIX = "s1.";
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Long REVOKED = Long.MIN_VALUE;
+    private static final String DEFAULT_SECRET = "changeme";
+
+    private final boolean enabled;
+    private final SecretKeySpec key;
+    private final int maxSize;
+    private final long ttlNanos;
+
+    private final Map<Long, Generation> generations;
+
+    @Inject
+    public SignedTokens(Config config) {
+        this(config.getBoolean("recipedia.auth.signed-tokens.enabled"),
+                getSecret(config).getBytes(StandardCharsets.UTF_8),
+                config.getInt("recipedia.auth.signed-tokens.generation-cache.max-size"),
+                config.getDuration("recipedia.auth.signed-tokens.generation-cache.ttl",
+                        TimeUnit.NANOSECONDS));
+    }
+
+    public SignedTokens(boolean enabled, byte[] secret, int maxSize, long ttlNanos) {
+        this.enabled = enabled;
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        this.maxSize = maxSize;
+        this.ttlNanos = ttlNanos;
+        this.generations = new LinkedHashMap<Long, Generation>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Generation> eldest) {
+                return size() > SignedTokens.this.maxSize;
+            }
+        };
+    }
+
+    private static String getSecret(Config config) {
+        String secret = config.getString("recipedia.auth.signed-tokens.secret");
+        if (config.getBoolean("recipedia.auth.signed-tokens.enabled")
+                && (secret.isEmpty() || secret.equals(DEFAULT_SECRET))) {
+            throw new ConfigException.BadValue("recipedia.auth.signed-tokens.secret",
+                    "Signed tokens cannot be enabled with the default secret");
+        }
+
+        return secret;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isSigned(String token) {
+        return enabled && token.startsWith(PREFIX);
+    }
+
+    /**
+     * Returns the token that must be handed to the given user: a signed
+     * token when they are enabled, the stored random token otherwise.
+     */
+    public String tokenFor(User user) {
+        if (!enabled) {
+            return user.getToken().getToken();
+        }
+
+        Long generation = user.getToken().getId();
+        rotate(user.getId(), generation);
+
+        return sign(user.getId(), generation);
+    }
+
+    public String sign(Long userId, Long generation) {
+        String payload = PREFIX + userId + "." + generation;
+        return payload + "." + mac(payload);
+    }
+
+    /**
+     * Checks the signature of a token and returns its user id and
+     * generation, or null if the token is malformed or tampered.
+     */
+    public long[] verify(String token) {
+        int sep = token.lastIndexOf('.');
+        if (!token.startsWith(PREFIX) || sep <= PREFIX.length()) {
+            return null;
+        }
+
+        String payload = token.substring(0, sep);
+        byte[] expected = mac(payload).getBytes(StandardCharsets.US_ASCII);
+        byte[] actual = token.substring(sep + 1).getBytes(StandardCharsets.US_ASCII);
+        if (!MessageDigest.isEqual(expected, actual)) {
+            return null;
+        }
+
+        String[] parts = payload.substring(PREFIX.length()).split("\\.");
+        if (parts.length != 2) {
+            return null;
+        }
+
+        try {
+            return new long[] { Long.parseLong(parts[0]), Long.parseLong(parts[1]) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the current token generation of a user if it is known, or
+     * null if it has to be looked up.
+     */
+    public Long currentGeneration(Long userId) {
+        synchronized (generations) {
+            Generation generation = generations.get(userId);
+            if (generation != null) {
+                if (generation.expiresAt - System.nanoTime() > 0) {
+                    return generation.value;
+                }
+                generations.remove(userId);
+            }
+        }
+
+        return null;
+    }
+
+    public boolean isRevoked(Long generation) {
+        return REVOKED.equals(generation);
+    }
+
+    public void rotate(Long userId, Long generation) {
+        Generation entry = new Generation(generation, System.nanoTime() + ttlNanos);
+        synchronized (generations) {
+            generations.put(userId, entry);
+        }
+    }
+
+    public void revoke(Long userId) {
+        rotate(userId, REVOKED);
+    }
+
+    private String mac(String payload) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            byte[] digest = mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Generation {
+
+        private final Long value;
+        private final long expiresAt;
+
+        private Generation(Long value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package services;
+
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import com.typesafe.config.Config;
+import models.Ingredient;
+import models.Recipe;
+import models.Tag;
+import play.Logger;
+import play.api.db.evolutions.ApplicationEvolutions;
+import play.inject.ApplicationLifecycle;
+import scala.concurrent.ExecutionContext$;
+import scala.concurrent.duration.FiniteDuration;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+/**
+ * Finds the recipes sharing the most ingredients and tags with a given one,
+ * by Jaccard similarity of their sets of ingredients and tags.
+ *
+ * Every recipe gets a MinHash signature, split in bands that are hashed
+ * into buckets (locality sensitive hashing): only recipes sharing a bucket
+ * with the given one are compared, which are very likely the most similar
+ * ones, so lookups do not depend on the size of the catalogue.
+ *
+ * The index is built from the database on its own threads when the
+ * application starts, or the first time it is used if configured so, and
+ * rebuilt periodically using every core. It must be kept up to date by
+ * calling the add and remove methods after every write. Writes made while
+ * the database is being read are replayed on what was read.
+ */
+@Singleton
+public class SimilarRecipesIndex {
+
+    static final int BANDS = 16;
+    static final int ROWS = 4;
+    private static final int HASHES = BANDS * ROWS;
+
+    private static final long[] SEEDS = new long[HASHES];
+    static {
+        Random random = new Random(0x5eed);
+        for (int i = 0; i < HASHES; i++) {
+            SEEDS[i] = random.nextLong();
+        }
+    }
+
+    private Map<Long, Set<String>> features = new HashMap<>();
+    private Map<Long, long[]> signatures = new HashMap<>();
+    private List<Map<Long, Set<Long>>> buckets = emptyBuckets();
+
+    // Changes made while a rebuild was reading the database
+    private List<Change> changesDuringRebuild;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean built;
+
+    // Rebuilds run on their own threads, one per core, never on those handling requests
+    private final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), p -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+        thread.setName("similar-recipes-" + thread.getPoolIndex());
+        return thread;
+    }, null, false);
+
+    // Evolutions are injected so that the database is ready before the first build
+    @Inject
+    public SimilarRecipesIndex(Config config, ActorSystem actorSystem, ApplicationLifecycle lifecycle,
+                               ApplicationEvolutions evolutions) {
+        Cancellable schedule = null;
+        Duration interval = config.getDuration("recipedia.similar-recipes.rebuild-interval");
+        if (!interval.isZero()) {
+            FiniteDuration period = FiniteDuration.create(interval.toMillis(), TimeUnit.MILLISECONDS);
+            schedule = actorSystem.scheduler().schedule(period, period, () -> {
+                if (built) {
+                    rebuild();
+                }
+            }, ExecutionContext$.MODULE$.fromExecutor(pool));
+        }
+        if (config.getBoolean("recipedia.similar-recipes.build-on-start")) {
+            pool.execute(this::build);
+        }
+
+        Cancellable scheduled = schedule;
+        lifecycle.addStopHook(() -> {
+            if (scheduled != null) {
+                scheduled.cancel();
+            }
+            pool.shutdownNow();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Returns the ids of up to the given number of recipes similar to the
+     * given one, most similar first.
+     */
+    public List<Long> similar(Long id, int limit) {
+        if (!built) {
+            // Not built on start, so the first lookup waits for it to be built on the index threads
+            CompletableFuture.runAsync(this::build, pool).join();
+        }
+
+        lock.readLock().lock();
+        try {
+            long[] signature = signatures.get(id);
+            if (signature == null) {
+                return new ArrayList<>();
+            }
+
+            Set<Long> candidates = new HashSet<>();
+            for (int band = 0; band < BANDS; band++) {
+                candidates.addAll(buckets.get(band).get(bandKey(signature, band)));
+            }
+            candidates.remove(id);
+
+            Set<String> own = features.get(id);
+            Map<Long, Double> similarities = new HashMap<>();
+            for (Long candidate : candidates) {
+                similarities.put(candidate, jaccard(own, features.get(candidate)));
+            }
+
+            return similarities.entrySet().stream()
+                    .sorted(Comparator.comparing((Map.Entry<Long, Double> e) -> -e.getValue())
+                            .thenComparing(Map.Entry::getKey))
+                    .limit(limit)
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toList());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void addIngredient(Long recipeId, String ingredient) {
+        update(recipeId, ingredientFeature(ingredient), true);
+    }
+
+    public void removeIngredient(Long recipeId, String ingredient) {
+        update(recipeId, ingredientFeature(ingredient), false);
+    }
+
+    public void addTag(Long recipeId, String tag) {
+        update(recipeId, tagFeature(tag), true);
+    }
+
+    public void removeTag(Long recipeId, String tag) {
+        update(recipeId, tagFeature(tag), false);
+    }
+
+    public void remove(Long recipeId) {
+        lock.writeLock().lock();
+        try {
+            if (changesDuringRebuild != null) {
+                changesDuringRebuild.add(new Change(recipeId, null, false));
+            }
+            if (built) {
+                unindex(recipeId);
+                features.remove(recipeId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rebuilds the whole index from the database, computing the signatures
+     * in parallel on the threads running it. Lookups keep using the
+     * previous index meanwhile.
+     */
+    public synchronized void rebuild() {
+        lock.writeLock().lock();
+        try {
+            changesDuringRebuild = new ArrayList<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        Map<Long, Set<String>> loaded = new HashMap<>();
+        Recipe.findEachComposition(recipe -> {
+            Set<String> recipeFeatures = new HashSet<>();
+            for (Ingredient ingredient : recipe.getIngredients()) {
+                recipeFeatures.add(ingredientFeature(ingredient.getName()));
+            }
+            for (Tag tag : recipe.getTags()) {
+                recipeFeatures.add(tagFeature(tag.getName()));
+            }
+            if (!recipeFeatures.isEmpty()) {
+                loaded.put(recipe.getId(), recipeFeatures);
+            }
+        });
+
+        Map<Long, long[]> computed = loaded.entrySet().parallelStream()
+                .collect(Collectors.toConcurrentMap(Map.Entry::getKey, e -> signature(e.getValue())));
+
+        lock.writeLock().lock();
+        try {
+            // Changes are idempotent, so replaying those the reads already saw is harmless
+            Set<Long> changed = new HashSet<>();
+            for (Change change : changesDuringRebuild) {
+                change.applyTo(loaded);
+                changed.add(change.recipeId);
+            }
+            for (Long id : changed) {
+                Set<String> current = loaded.get(id);
+                if (current != null) {
+                    computed.put(id, signature(current));
+                } else {
+                    computed.remove(id);
+                }
+            }
+            changesDuringRebuild = null;
+
+            features = loaded;
+            signatures = new HashMap<>(computed);
+            buckets = emptyBuckets();
+            for (Map.Entry<Long, long[]> signature : signatures.entrySet()) {
+                addToBuckets(signature.getKey(), signature.getValue());
+            }
+            built = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        Logger.info("Similar recipes index rebuilt with {} recipes", signatures.size());
+    }
+
+    private void build() {
+        if (!built) {
+            synchronized (this) {
+                if (!built) {
+                    rebuild();
+                }
+            }
+        }
+    }
+
+    // Writes before the index is first built are already in the database it is built from
+    private void update(Long recipeId, String feature, boolean add) {
+        lock.writeLock().lock();
+        try {
+            if (changesDuringRebuild != null) {
+                changesDuringRebuild.add(new Change(recipeId, feature, add));
+            }
+            if (!built) {
+                return;
+            }
+
+            Set<String> recipeFeatures = features.computeIfAbsent(recipeId, id -> new HashSet<>());
+            if (!(add ? recipeFeatures.add(feature) : recipeFeatures.remove(feature))) {
+                return;
+            }
+
+            unindex(recipeId);
+            if (recipeFeatures.isEmpty()) {
+                features.remove(recipeId);
+            } else {
+                long[] signature = signature(recipeFeatures);
+                signatures.put(recipeId, signature);
+                addToBuckets(recipeId, signature);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void unindex(Long recipeId) {
+        long[] signature = signatures.remove(recipeId);
+        if (signature == null) {
+            return;
+        }
+
+        for (int band = 0; band < BANDS; band++) {
+            Map<Long, Set<Long>> bandBuckets = buckets.get(band);
+            long key = bandKey(signature, band);
+            Set<Long> bucket = bandBuckets.get(key);
+            bucket.remove(recipeId);
+            if (bucket.isEmpty()) {
+                bandBuckets.remove(key);
+            }
+        }
+    }
+
+    private void addToBuckets(Long recipeId, long[] signature) {
+        for (int band = 0; band < BANDS; band++) {
+            buckets.get(band).computeIfAbsent(bandKey(signature, band), k -> new HashSet<>()).add(recipeId);
+        }
+    }
+
+    static long[] signature(Set<String> recipeFeatures) {
+        long[] signature = new long[HASHES];
+        Arrays.fill(signature, Long.MAX_VALUE);
+        for (String feature : recipeFeatures) {
+            long hash = mix(feature.hashCode());
+            for (int i = 0; i < HASHES; i++) {
+                signature[i] = Math.min(signature[i], mix(hash ^ SEEDS[i]));
+            }
+        }
+
+        return signature;
+    }
+
+    private static long bandKey(long[] signature, int band) {
+        long key = 1;
+        for (int row = band * ROWS; row < (band + 1) * ROWS; row++) {
+            key = 31 * key + signature[row];
+        }
+
+        return key;
+    }
+
+    private static double jaccard(Set<String> a, Set<String> b) {
+        int common = 0;
+        for (String feature : a) {
+            if (b.contains(feature)) {
+                common++;
+            }
+        }
+
+        return (double) common / (a.size() + b.size() - common);
+    }
+
+    // Finalizer of MurmurHash3, which spreads every input bit over the whole hash
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static String ingredientFeature(String name) {
+        return "i:" + name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static String tagFeature(String name) {
+        return "t:" + name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    // Addition or removal of a feature of a recipe, or removal of the whole recipe without a feature
+    private static class Change {
+
+        private final Long recipeId;
+        private final String feature;
+        private final boolean add;
+
+        private Change(Long recipeId, String feature, boolean add) {
+            this.recipeId = recipeId;
+            this.feature = feature;
+            this.add = add;
+        }
+
+        private void applyTo(Map<Long, Set<String>> features) {
+            if (add) {
+                features.computeIfAbsent(recipeId, id -> new HashSet<>()).add(feature);
+                return;
+            }
+
+            Set<String> recipeFeatures = features.get(recipeId);
+            if (recipeFeatures != null && feature != null) {
+                recipeFeatures.remove(feature);
+            }
+            if (recipeFeatures != null && (feature == null || recipeFeatures.isEmpty())) {
+                features.remove(recipeId);
+            }
+        }
+    }
+
+    private static List<Map<Long, Set<Long>>> emptyBuckets() {
+        List<Map<Long, Set<Long>>> buckets = new ArrayList<>(BANDS);
+        for (int band = 0; band < BANDS; band++) {
+            buckets.add(new HashMap<>());
+        }
+
+        return buckets;
+    }
+}
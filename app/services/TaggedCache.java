@@ -0,0 +1,335 @@
+package services;
+
+import com.typesafe.config.Config;
+import play.cache.SyncCacheApi;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Cache layer over {@link SyncCacheApi} where every entry depends on a set
+ * of tags, so that all entries sharing a tag can be invalidated at once.
+ *
+ * Invalidation does not touch the entries themselves: each tag remembers
+ * the logical time of its last invalidation, and an entry is discarded on
+ * read when any of its tags has been invalidated after the entry started
+ * loading. This makes invalidating a tag O(1) whatever the number of
+ * entries depending on it. Invalidations are forgotten once older than the
+ * configured retention, and entries that started loading before a
+ * forgotten invalidation are then discarded too, since they cannot be
+ * told apart from the ones it affected.
+ *
+ * Loads that find nothing are cached for a short time as well, so that
+ * repeated lookups of missing keys do not reach the database every time.
+ *
+ * Loads through {@link #getOrElseUpdate} are coalesced per key: while a
+ * value is being loaded, concurrent requests for the same key wait for
+ * that load instead of running their own.
+ */
+@Singleton
+public class TaggedCache {
+
+    private static final String[] NO_TAGS = new String[0];
+
+    private final SyncCacheApi cache;
+    private final int missingExpiration;
+    private final long retentionNanos;
+
+    private final AtomicLong clock = new AtomicLong();
+    private final ConcurrentMap<String, Invalidation> invalidations = new ConcurrentHashMap<>();
+    private final AtomicLong forgottenAt = new AtomicLong();
+    private final AtomicLong lastPruning = new AtomicLong(System.nanoTime());
+    private final ConcurrentMap<String, Load> loading = new ConcurrentHashMap<>();
+
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong coalescedLoads = new AtomicLong();
+
+    @Inject
+    public TaggedCache(SyncCacheApi cache, Config config) {
+        this(cache, (int) config.getDuration("recipedia.cache.missing-expiration", TimeUnit.SECONDS),
+                config.getDuration("recipedia.cache.invalidation-retention", TimeUnit.NANOSECONDS));
+    }
+
+    public TaggedCache(SyncCacheApi cache, int missingExpiration, long retentionNanos) {
+        this.cache = cache;
+        this.missingExpiration = missingExpiration;
+        this.retentionNanos = retentionNanos;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T get(String key) {
+        Entry entry = lookup(key);
+        return (entry != null) ? (T) entry.value : null;
+    }
+
+    /**
+     * Stores a value that does not depend on any tag.
+     */
+    public void set(String key, Object value) {
+        set(key, value, 0, NO_TAGS);
+    }
+
+    public void set(String key, Object value, int expiration, String... tags) {
+        store(key, value, clock.get(), expiration, tags);
+    }
+
+    /**
+     * Returns the cached value for the given key, loading and caching it if
+     * needed, where a missing value depends on no tag.
+     */
+    public <T> T getOrElseUpdate(String key, Supplier<T> loader, int expiration,
+                                 Function<T, String[]> tags) {
+        return getOrElseUpdate(key, loader, expiration, tags, NO_TAGS);
+    }
+
+    /**
+     * Returns the cached value for the given key, loading and caching it if
+     * needed. The tags of the loaded value are computed once it is available,
+     * and the value is only cached if none of them was invalidated while it
+     * was being loaded. A null value is cached for the configured missing
+     * expiration only, and depends on the given missing tags.
+     *
+     * Only one load runs at a time for a given key; callers arriving while it
+     * runs get its result, unless one of the tags of the loaded value was
+     * invalidated since it started, in which case they load it again.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getOrElseUpdate(String key, Supplier<T> loader, int expiration,
+                                 Function<T, String[]> tags, String... missingTags) {
+        Entry entry = lookup(key);
+        if (entry != null) {
+            return (T) entry.value;
+        }
+
+        Load load = new Load();
+        Load running = loading.putIfAbsent(key, load);
+        if (running != null) {
+            coalescedLoads.incrementAndGet();
+            Entry loaded = running.join();
+            // Only the tags of the loaded value tell whether it was invalidated meanwhile
+            if (!isStale(loaded)) {
+                return (T) loaded.value;
+            }
+            return (T) load(key, loader, expiration, tags, missingTags).value;
+        }
+
+        try {
+            // The previous load may have finished between the lookup and the registration
+            entry = lookup(key);
+            if (entry == null) {
+                entry = load(key, loader, expiration, tags, missingTags);
+            }
+
+            load.result.complete(entry);
+            return (T) entry.value;
+        } catch (RuntimeException e) {
+            load.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, load);
+        }
+    }
+
+    /**
+     * Returns the cached values for the given keys, loading every missing one
+     * with a single call to the loader, which gets the missing keys and
+     * returns the values it found for them. Values found are cached as in
+     * {@link #getOrElseUpdate}, but batch loads are not coalesced and keys
+     * left without a value are not remembered.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Map<String, T> getOrElseUpdateAll(Collection<String> keys, Function<Set<String>, Map<String, T>> loader,
+                                                 int expiration, Function<T, String[]> tags) {
+        Map<String, T> values = new HashMap<>();
+        Set<String> missing = new LinkedHashSet<>();
+        for (String key : keys) {
+            Entry entry = lookup(key);
+            if (entry == null) {
+                missing.add(key);
+            } else if (entry.value != null) {
+                values.put(key, (T) entry.value);
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return values;
+        }
+
+        long loadedAt = clock.get();
+        loads.incrementAndGet();
+        for (Map.Entry<String, T> loaded : loader.apply(missing).entrySet()) {
+            if (loaded.getValue() != null) {
+                store(loaded.getKey(), loaded.getValue(), loadedAt, expiration, tags.apply(loaded.getValue()));
+                values.put(loaded.getKey(), loaded.getValue());
+            }
+        }
+
+        return values;
+    }
+
+    public void remove(String key) {
+        cache.remove(key);
+    }
+
+    /**
+     * Invalidates every entry depending on any of the given tags.
+     */
+    public void invalidate(String... tags) {
+        Invalidation invalidation = new Invalidation(clock.incrementAndGet(), System.nanoTime());
+        for (String tag : tags) {
+            invalidations.put(tag, invalidation);
+        }
+
+        forgetInvalidations(invalidation.invalidatedAt);
+    }
+
+    /**
+     * Number of tags whose last invalidation is still remembered.
+     */
+    public int getInvalidatedTagCount() {
+        return invalidations.size();
+    }
+
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    /**
+     * Number of callers that waited for an ongoing load of the same key
+     * instead of starting their own.
+     */
+    public long getCoalescedLoadCount() {
+        return coalescedLoads.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Entry lookup(String key) {
+        Entry entry = cache.get(key);
+        if (entry != null && isStale(entry)) {
+            cache.remove(key);
+            return null;
+        }
+
+        return entry;
+    }
+
+    private <T> Entry load(String key, Supplier<T> loader, int expiration,
+                           Function<T, String[]> tags, String[] missingTags) {
+        long loadedAt = clock.get();
+        loads.incrementAndGet();
+        T value = loader.get();
+        if (value != null) {
+            return store(key, value, loadedAt, expiration, tags.apply(value));
+        } else if (missingExpiration > 0) {
+            return store(key, null, loadedAt, missingExpiration, missingTags);
+        }
+
+        return new Entry(null, loadedAt, missingTags);
+    }
+
+    private Entry store(String key, Object value, long loadedAt, int expiration, String[] tags) {
+        Entry entry = new Entry(value, loadedAt, tags);
+        if (isStale(entry)) {
+            return entry;
+        }
+
+        if (expiration > 0) {
+            cache.set(key, entry, expiration);
+        } else {
+            cache.set(key, entry);
+        }
+
+        return entry;
+    }
+
+    private boolean isStale(Entry entry) {
+        if (entry.tags.length > 0 && entry.loadedAt < forgottenAt.get()) {
+            return true;
+        }
+
+        for (String tag : entry.tags) {
+            Invalidation invalidation = invalidations.get(tag);
+            if (invalidation != null && invalidation.stamp > entry.loadedAt) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // At most once per retention, forgets the invalidations older than it
+    private void forgetInvalidations(long now) {
+        long last = lastPruning.get();
+        if (now - last < retentionNanos || !lastPruning.compareAndSet(last, now)) {
+            return;
+        }
+
+        List<Map.Entry<String, Invalidation>> forgotten = new ArrayList<>();
+        long latest = 0;
+        for (Map.Entry<String, Invalidation> invalidation : invalidations.entrySet()) {
+            if (now - invalidation.getValue().invalidatedAt >= retentionNanos) {
+                forgotten.add(invalidation);
+                latest = Math.max(latest, invalidation.getValue().stamp);
+            }
+        }
+
+        // Entries the forgotten invalidations could affect must be discarded before they are gone
+        forgottenAt.accumulateAndGet(latest, Math::max);
+        for (Map.Entry<String, Invalidation> invalidation : forgotten) {
+            invalidations.remove(invalidation.getKey(), invalidation.getValue());
+        }
+    }
+
+    private static class Load {
+
+        private final CompletableFuture<Entry> result = new CompletableFuture<>();
+
+        private Entry join() {
+            try {
+                return result.join();
+            } catch (CompletionException e) {
+                throw (e.getCause() instanceof RuntimeException)
+                        ? (RuntimeException) e.getCause() : e;
+            }
+        }
+    }
+
+    private static class Invalidation {
+
+        private final long stamp;
+        private final long invalidatedAt;
+
+        private Invalidation(long stamp, long invalidatedAt) {
+            this.stamp = stamp;
+            this.invalidatedAt = invalidatedAt;
+        }
+    }
+
+    private static class Entry {
+
+        private final Object value;
+        private final long loadedAt;
+        private final String[] tags;
+
+        private Entry(Object value, long loadedAt, String[] tags) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+            this.tags = tags;
+        }
+    }
+}
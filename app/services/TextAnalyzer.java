@@ -0,0 +1,61 @@
+package services;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Turns Spanish text into the terms used by the in-memory indexes:
+ * lower cased, without accents, without stop words and singularized.
+ */
+public final class TextAnalyzer {
+
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^a-z0-9ñ]+");
+
+    private static final Set<String> STOP_WORDS = new HashSet<>(Arrays.asList(
+            "a", "al", "con", "de", "del", "el", "en", "la", "las", "lo", "los",
+            "o", "para", "por", "sin", "su", "un", "una", "y"));
+
+    private TextAnalyzer() {
+    }
+
+    /**
+     * Lower cases the text and removes its accents, keeping the ñ.
+     */
+    public static String fold(String text) {
+        String lower = text.toLowerCase(Locale.ROOT).replace('ñ', '\u0000');
+        return DIACRITICS.matcher(Normalizer.normalize(lower, Normalizer.Form.NFD))
+                .replaceAll("")
+                .replace('\u0000', 'ñ');
+    }
+
+    public static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        if (text == null) {
+            return terms;
+        }
+
+        for (String token : SEPARATORS.split(fold(text))) {
+            if (!token.isEmpty() && !STOP_WORDS.contains(token)) {
+                terms.add(singularize(token));
+            }
+        }
+
+        return terms;
+    }
+
+    // Light stemming, enough to match "tomates" with "tomate"
+    private static String singularize(String token) {
+        if (token.length() > 3 && token.endsWith("s")) {
+            return token.substring(0, token.length() - 1);
+        }
+
+        return token;
+    }
+}
@@ -0,0 +1,136 @@
+package services;
+
+import com.typesafe.config.Config;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, expiring cache that maps an authorization token to the id of
+ * the user that owns it, so that authenticated requests do not need to hit
+ * the database on every call.
+ *
+ * Only ids are kept, never entities: every request gets its own instance
+ * of the user, so that requests sharing a token share no mutable state.
+ *
+ * Entries are evicted in least recently used order once the configured
+ * maximum size is reached, and expire after the configured time to live.
+ * Tokens must be explicitly evicted whenever they stop being valid (token
+ * reset, user deletion), once the change is committed.
+ */
+@Singleton
+public class TokenCache {
+
+    private final int maxSize;
+    private final long ttlNanos;
+
+    private final Map<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @Inject
+    public TokenCache(Config config) {
+        this(config.getInt("recipedia.auth.token-cache.max-size"),
+                config.getDuration("recipedia.auth.token-cache.ttl", TimeUnit.NANOSECONDS));
+    }
+
+    public TokenCache(int maxSize, long ttlNanos) {
+        this.maxSize = maxSize;
+        this.ttlNanos = ttlNanos;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > TokenCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the id of the user owning the given token, or null if the
+     * token is not cached or its entry has expired.
+     */
+    public Long get(String token) {
+        synchronized (entries) {
+            Entry entry = entries.get(token);
+            if (entry != null) {
+                if (entry.expiresAt - System.nanoTime() > 0) {
+                    hits.incrementAndGet();
+                    return entry.userId;
+                }
+                entries.remove(token);
+            }
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Whether the given token is cached and has not expired, without
+     * counting it as a hit or a miss.
+     */
+    public boolean contains(String token) {
+        synchronized (entries) {
+            Entry entry = entries.get(token);
+            return entry != null && entry.expiresAt - System.nanoTime() > 0;
+        }
+    }
+
+    public void put(String token, Long userId) {
+        Entry entry = new Entry(userId, System.nanoTime() + ttlNanos);
+        synchronized (entries) {
+            entries.put(token, entry);
+        }
+    }
+
+    public void evict(String token) {
+        synchronized (entries) {
+            entries.remove(token);
+        }
+    }
+
+    /**
+     * Evicts every token belonging to the given user.
+     */
+    public void evictUser(Long userId) {
+        synchronized (entries) {
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().userId.equals(userId)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static class Entry {
+
+        private final Long userId;
+        private final long expiresAt;
+
+        private Entry(Long userId, long expiresAt) {
+            this.userId = userId;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+# --- Rating aggregates of the recipes, only ever written when a review is added
+
+# --- !Ups
+
+alter table recipes add column if not exists rating double;
+alter table recipes add column if not exists review_count integer default 0 not null;
+alter table recipes add column if not exists rating_sum double default 0 not null;
+alter table recipes add column if not exists stars1 integer default 0 not null;
+alter table recipes add column if not exists stars2 integer default 0 not null;
+alter table recipes add column if not exists stars3 integer default 0 not null;
+alter table recipes add column if not exists stars4 integer default 0 not null;
+alter table recipes add column if not exists stars5 integer default 0 not null;
+
+create index if not exists ix_recipes_rating on recipes (rating);
+
+update recipes set
+  review_count = (select count(*) from reviews r where r.recipe_id = recipes.id and r.rating is not null),
+  rating_sum = (select coalesce(sum(r.rating), 0) from reviews r where r.recipe_id = recipes.id),
+  rating = (select avg(cast(r.rating as double)) from reviews r where r.recipe_id = recipes.id),
+  stars1 = (select count(*) from reviews r where r.recipe_id = recipes.id and floor(r.rating + 0.5) <= 1),
+  stars2 = (select count(*) from reviews r where r.recipe_id = recipes.id and floor(r.rating + 0.5) = 2),
+  stars3 = (select count(*) from reviews r where r.recipe_id = recipes.id and floor(r.rating + 0.5) = 3),
+  stars4 = (select count(*) from reviews r where r.recipe_id = recipes.id and floor(r.rating + 0.5) = 4),
+  stars5 = (select count(*) from reviews r where r.recipe_id = recipes.id and floor(r.rating + 0.5) >= 5);
+
+# --- !Downs
+
+drop index if exists ix_recipes_rating;
+
+alter table recipes drop column if exists stars5;
+alter table recipes drop column if exists stars4;
+alter table recipes drop column if exists stars3;
+alter table recipes drop column if exists stars2;
+alter table recipes drop column if exists stars1;
+alter table recipes drop column if exists rating_sum;
+alter table recipes drop column if exists review_count;
+alter table recipes drop column if exists rating;
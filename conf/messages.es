@@ -10,6 +10,10 @@ duplicate_user = El usuario ya existe
 update_unauthorized = Sólo estás autorizado a modificar tus propias recetas
 delete_unauthorized = Sólo estás autorizado a borrar tus propias recetas
 
+precondition_failed = El recurso ha sido modificado desde que lo obtuviste
+
+service_unavailable = El servidor está demasiado ocupado para atender la petición, inténtalo más tarde
+
 error.invalid = Valor inválido. Consulte la documentación
 error.greater = Debe ser mayor que 0
 error.lower = Debe ser menor que 5
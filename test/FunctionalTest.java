@@ -1,17 +1,36 @@
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import io.ebean.Ebean;
+import io.ebean.SqlRow;
 import models.Recipe;
 import models.Review;
 import models.User;
 import org.junit.Before;
 import org.junit.Test;
 import play.Application;
+import play.http.HttpEntity;
 import play.libs.Json;
 import play.mvc.Http;
 import play.mvc.Result;
 import play.test.Helpers;
 import play.test.WithApplication;
 import play.twirl.api.Content;
+import services.AdmissionControl;
+import services.Bulkheads;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -30,7 +49,11 @@ public class FunctionalTest extends WithApplication {
 
     @Override
     protected Application provideApplication() {
-        return Helpers.fakeApplication(Helpers.inMemoryDatabase());
+        Map<String, Object> config = new HashMap<>(Helpers.inMemoryDatabase());
+        config.put("recipedia.metrics.enabled", true);
+        // The similar recipes index is built from the data of every test on first use
+        config.put("recipedia.similar-recipes.build-on-start", false);
+        return Helpers.fakeApplication(config);
     }
 
     @Before
@@ -294,6 +317,41 @@ public class FunctionalTest extends WithApplication {
         assertThat(r.contentType().orElse("")).isEqualTo("application/xml");
     }
 
+    @Test
+    public void testUserCollectionStreamedXml() {
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/users/0")
+                .header("Authorization", user2.getToken().getToken())
+                .header("Accept", "application/xml");
+
+        Result r = Helpers.route(app, req);
+        String xml = Helpers.contentAsString(r, mat);
+
+        assertThat(r.body()).isInstanceOf(HttpEntity.Chunked.class);
+        assertThat(xml).startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        assertThat(xml).contains("<page>0</page>", "<total>2</total>", "<name>" + user1.getName() + "</name>");
+        assertThat(xml).endsWith("</users>");
+    }
+
+    @Test
+    public void testUserCollectionSparseFieldsJson() {
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/users/0?fields=name")
+                .header("Authorization", user2.getToken().getToken())
+                .header("Accept", "application/json");
+
+        Result r = Helpers.route(app, req);
+        JsonNode user = Json.parse(Helpers.contentAsString(r, mat)).get("users").get(0);
+
+        assertThat(r.status()).isEqualTo(200);
+        assertThat(r.contentType().orElse("")).isEqualTo("application/json");
+        assertThat(user.get("id").asLong()).isPositive();
+        assertThat(user.get("name").asText()).isNotEmpty();
+        assertThat(user.has("city")).isFalse();
+    }
+
     @Test
     public void testUserRecipesGetNotFound() {
         Http.RequestBuilder req = Helpers.fakeRequest()
@@ -307,6 +365,19 @@ public class FunctionalTest extends WithApplication {
         assertThat(r.status()).isEqualTo(404);
     }
 
+    @Test
+    public void testUserRecipesByCursorBadRequest() {
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/user/" + (user2.getId() + 1) + "/recipes?cursor=abc")
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/json");
+
+        Result r = Helpers.route(app, req);
+
+        assertThat(r.status()).isEqualTo(400);
+    }
+
     @Test
     public void testUserRecipesGetOkJson() {
         Http.RequestBuilder req = Helpers.fakeRequest()
@@ -447,6 +518,30 @@ public class FunctionalTest extends WithApplication {
         assertThat(r.status()).isEqualTo(404);
     }
 
+    @Test
+    public void testRecipeGetSparseFieldsJson() {
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipe/" + recipe2.getId() + "?fields=name,time")
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/json");
+
+        JsonNode json = Json.parse(Helpers.contentAsString(Helpers.route(app, req), mat));
+
+        req.uri("/recipe/" + recipe2.getId() + "?fields=name,ingredients");
+        Result association = Helpers.route(app, req);
+
+        req.uri("/recipe/" + recipe2.getId() + "?fields=ratingSum");
+        Result hidden = Helpers.route(app, req);
+
+        assertThat(json.get("id").asLong()).isEqualTo(recipe2.getId());
+        assertThat(json.get("name").asText()).isEqualTo(recipe2.getName());
+        assertThat(json.get("time").asInt()).isEqualTo(recipe2.getTime());
+        assertThat(json.has("steps")).isFalse();
+        assertThat(association.status()).isEqualTo(400);
+        assertThat(hidden.status()).isEqualTo(400);
+    }
+
     @Test
     public void testRecipeGetOkJson() {
         Http.RequestBuilder req = Helpers.fakeRequest()
@@ -467,6 +562,166 @@ public class FunctionalTest extends WithApplication {
         assertThat(json.get("steps").asText()).isNotEmpty();
     }
 
+    @Test
+    public void testRecipeGetNotModified() {
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipe/" + recipe1.getId())
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/json");
+
+        String etag = Helpers.route(app, req).header("ETag").orElse("");
+        Result r = Helpers.route(app, req.header("If-None-Match", etag));
+
+        assertThat(etag).isNotEmpty();
+        assertThat(r.status()).isEqualTo(304);
+    }
+
+    @Test
+    public void testRecipeGetGzipped() throws IOException {
+        Recipe recipe = getRecipe1();
+        recipe.setName("Alcachofas al horno");
+        recipe.setSteps(String.join(" ", Collections.nCopies(40, recipe1.getSteps())));
+        recipe.setUser(user1);
+        recipe.validateAndSave();
+
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipe/" + recipe.getId())
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/json")
+                .header("Accept-Encoding", "br;q=1.0, gzip;q=0.8");
+
+        Result r = Helpers.route(app, req);
+        JsonNode json = Json.parse(new GZIPInputStream(
+                new ByteArrayInputStream(Helpers.contentAsBytes(r, mat).toArray())));
+
+        assertThat(r.status()).isEqualTo(200);
+        assertThat(r.header("Content-Encoding").orElse("")).isEqualTo("gzip");
+        assertThat(r.header("Vary").orElse("")).isEqualTo("Accept, Accept-Encoding");
+        assertThat(json.get("steps").asText()).isEqualTo(recipe.getSteps());
+
+        Result notModified = Helpers.route(app, req.header("If-None-Match", r.header("ETag").orElse("")));
+        assertThat(notModified.status()).isEqualTo(304);
+    }
+
+    @Test
+    public void testRecipeGetSmallNotGzipped() {
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipe/" + recipe1.getId())
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/json")
+                .header("Accept-Encoding", "gzip");
+
+        Result r = Helpers.route(app, req);
+
+        assertThat(r.status()).isEqualTo(200);
+        assertThat(r.header("Content-Encoding").isPresent()).isFalse();
+        assertThat(Json.parse(Helpers.contentAsString(r, mat)).get("name").asText()).isEqualTo(recipe1.getName());
+    }
+
+    @Test
+    public void testRecipeGetETagPerFormat() {
+        Http.RequestBuilder json = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipe/" + recipe1.getId())
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/json");
+        Http.RequestBuilder xml = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipe/" + recipe1.getId())
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/xml");
+
+        Result jsonResult = Helpers.route(app, json);
+        Result xmlResult = Helpers.route(app, xml);
+        String etag = jsonResult.header("ETag").orElse("");
+
+        assertThat(jsonResult.header("Vary").orElse("")).isEqualTo("Accept, Accept-Encoding");
+        assertThat(xmlResult.header("Vary").orElse("")).isEqualTo("Accept, Accept-Encoding");
+        assertThat(etag).isNotEqualTo(xmlResult.header("ETag").orElse(""));
+
+        Result notModified = Helpers.route(app, json.header("If-None-Match", etag));
+        assertThat(notModified.status()).isEqualTo(304);
+        assertThat(notModified.header("Vary").orElse("")).isEqualTo("Accept, Accept-Encoding");
+        assertThat(Helpers.route(app, xml.header("If-None-Match", etag)).status()).isEqualTo(200);
+    }
+
+    @Test
+    public void testRecipeGetModifiedAfterUpdate() {
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipe/" + recipe1.getId())
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/json");
+
+        String etag = Helpers.route(app, req).header("ETag").orElse("");
+
+        Http.RequestBuilder patch = Helpers.fakeRequest()
+                .method("PATCH")
+                .uri("/recipe/" + recipe1.getId())
+                .header("Authorization", user1.getToken().getToken())
+                .header("Content-Type", "application/json")
+                .bodyJson(recipePatchJson);
+
+        Helpers.route(app, patch);
+        Result r = Helpers.route(app, req.header("If-None-Match", etag));
+
+        assertThat(r.status()).isEqualTo(200);
+        assertThat(r.header("ETag").orElse(etag)).isNotEqualTo(etag);
+    }
+
+    @Test
+    public void testRecipePatchIfMatch() {
+        Http.RequestBuilder get = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipe/" + recipe1.getId())
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/json");
+
+        String etag = Helpers.route(app, get).header("ETag").orElse("");
+
+        Http.RequestBuilder patch = Helpers.fakeRequest()
+                .method("PATCH")
+                .uri("/recipe/" + recipe1.getId())
+                .header("Authorization", user1.getToken().getToken())
+                .header("Content-Type", "application/json")
+                .header("If-Match", etag)
+                .bodyJson(recipePatchJson);
+
+        Result first = Helpers.route(app, patch);
+        Result second = Helpers.route(app, patch);
+
+        assertThat(first.status()).isEqualTo(200);
+        assertThat(second.status()).isEqualTo(412);
+        assertThat(Recipe.findById(recipe1.getId()).getName()).isEqualTo("Pasta con tomate");
+    }
+
+    @Test
+    public void testRecipePatchIfMatchWeak() {
+        Http.RequestBuilder get = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipe/" + recipe1.getId())
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/json");
+
+        String etag = Helpers.route(app, get).header("ETag").orElse("");
+
+        Http.RequestBuilder patch = Helpers.fakeRequest()
+                .method("PATCH")
+                .uri("/recipe/" + recipe1.getId())
+                .header("Authorization", user1.getToken().getToken())
+                .header("Content-Type", "application/json")
+                .header("If-Match", "W/" + etag)
+                .bodyJson(recipePatchJson);
+
+        Result r = Helpers.route(app, patch);
+
+        assertThat(r.status()).isEqualTo(412);
+        assertThat(Recipe.findById(recipe1.getId()).getName()).isEqualTo(recipe1.getName());
+    }
+
     @Test
     public void testRecipeGetOkXml() {
         Http.RequestBuilder req = Helpers.fakeRequest()
@@ -640,6 +895,179 @@ public class FunctionalTest extends WithApplication {
         assertThat(r.contentType().orElse("")).isEqualTo("application/json");
     }
 
+    @Test
+    public void testRecipeCollectionStreamedJson() {
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipes/0")
+                .header("Authorization", user2.getToken().getToken())
+                .header("Accept", "application/json");
+
+        Result r = Helpers.route(app, req);
+        JsonNode json = Json.parse(Helpers.contentAsString(r, mat));
+
+        assertThat(r.body()).isInstanceOf(HttpEntity.Chunked.class);
+        assertThat(json.get("page").asInt()).isEqualTo(0);
+        assertThat(json.get("total").asInt()).isEqualTo(2);
+        assertThat(json.get("recipes").size()).isEqualTo(2);
+    }
+
+    @Test
+    public void testRecipeCollectionExpandedSmile() throws IOException {
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipes/0?expand=all")
+                .header("Authorization", user2.getToken().getToken())
+                .header("Accept", "application/x-jackson-smile");
+
+        Result r = Helpers.route(app, req);
+        JsonNode json = new ObjectMapper(new SmileFactory()).readTree(Helpers.contentAsBytes(r, mat).toArray());
+
+        assertThat(r.status()).isEqualTo(200);
+        assertThat(r.contentType().orElse("")).isEqualTo("application/x-jackson-smile");
+        assertThat(json.get("total").asInt()).isEqualTo(2);
+        assertThat(json.get("recipes").size()).isEqualTo(2);
+        assertThat(json.get("recipes").get(1).get("name").asText()).isNotEmpty();
+    }
+
+    @Test
+    public void testUserGetOkCbor() throws IOException {
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/user/" + user1.getId())
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/cbor");
+
+        Result r = Helpers.route(app, req);
+        JsonNode json = new ObjectMapper(new CBORFactory()).readTree(Helpers.contentAsBytes(r, mat).toArray());
+
+        assertThat(r.status()).isEqualTo(200);
+        assertThat(r.contentType().orElse("")).isEqualTo("application/cbor");
+        assertThat(json.get("id").asLong()).isEqualTo(user1.getId());
+        assertThat(json.get("name").asText()).isEqualTo(user1.getName());
+    }
+
+    @Test
+    public void testRecipeCollectionCacheInvalidatedOnCreate() {
+        Http.RequestBuilder get = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipes/0")
+                .header("Authorization", user2.getToken().getToken())
+                .header("Accept", "application/json");
+
+        Result before = Helpers.route(app, get);
+
+        Http.RequestBuilder post = Helpers.fakeRequest()
+                .method("POST")
+                .uri("/recipe")
+                .header("Authorization", user1.getToken().getToken())
+                .header("Content-Type", "application/json")
+                .bodyJson(recipeJson);
+
+        Helpers.route(app, post);
+        Result after = Helpers.route(app, get);
+
+        assertThat(Json.parse(Helpers.contentAsString(before, mat)).get("total").asInt()).isEqualTo(2);
+        assertThat(Json.parse(Helpers.contentAsString(after, mat)).get("total").asInt()).isEqualTo(3);
+    }
+
+    @Test
+    public void testRecipeCollectionByCursorOkJson() {
+        for (int i = 0; i < 21; i++) {
+            Recipe recipe = getRecipe1();
+            recipe.setName("Receta " + i);
+            recipe.setUser(user2);
+            recipe.validateAndSave();
+        }
+
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipes?sortBy=name:desc")
+                .header("Authorization", user2.getToken().getToken())
+                .header("Accept", "application/json");
+
+        JsonNode first = Json.parse(Helpers.contentAsString(Helpers.route(app, req), mat));
+        String cursor = first.get("next").asText();
+
+        req.uri("/recipes?cursor=" + cursor);
+        JsonNode second = Json.parse(Helpers.contentAsString(Helpers.route(app, req), mat));
+
+        assertThat(first.get("recipes").size()).isEqualTo(20);
+        assertThat(first.get("recipes").get(0).get("name").asText()).isEqualTo("Receta 9");
+        assertThat(second.get("recipes").size()).isEqualTo(3);
+        assertThat(second.get("next").isNull()).isTrue();
+    }
+
+    @Test
+    public void testRecipeCollectionByRatingCursorOkJson() {
+        for (int i = 0; i < 21; i++) {
+            Recipe recipe = getRecipe1();
+            recipe.setName("Receta " + i);
+            recipe.setUser(user2);
+            recipe.validateAndSave();
+            if (i < 3) {
+                Review review = new Review();
+                review.setComment("Buena");
+                review.setRating(3.0f + i);
+                review.setUser(user1);
+                recipe.addReview(review);
+            }
+        }
+
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipes?sortBy=rating:desc")
+                .header("Authorization", user2.getToken().getToken())
+                .header("Accept", "application/json");
+
+        JsonNode first = Json.parse(Helpers.contentAsString(Helpers.route(app, req), mat));
+
+        req.uri("/recipes?cursor=" + first.get("next").asText());
+        JsonNode second = Json.parse(Helpers.contentAsString(Helpers.route(app, req), mat));
+
+        Set<Long> ids = new HashSet<>();
+        for (JsonNode recipe : first.get("recipes")) {
+            ids.add(recipe.get("id").asLong());
+        }
+        for (JsonNode recipe : second.get("recipes")) {
+            ids.add(recipe.get("id").asLong());
+        }
+
+        assertThat(first.get("recipes").get(0).get("name").asText()).isEqualTo("Receta 2");
+        assertThat(first.get("recipes").get(2).get("name").asText()).isEqualTo("Receta 0");
+        assertThat(second.get("next").isNull()).isTrue();
+        assertThat(ids).hasSize(23);
+    }
+
+    @Test
+    public void testRecipeSearchByMalformedRating() {
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .header("Authorization", user2.getToken().getToken())
+                .header("Accept", "application/json");
+
+        for (String minRating : new String[] { "abc", "-1", "5.5" }) {
+            req.uri("/recipes/search?minRating=" + minRating);
+
+            assertThat(Helpers.route(app, req).status()).isEqualTo(400);
+        }
+    }
+
+    @Test
+    public void testRecipeCollectionByTamperedCursor() {
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .header("Authorization", user2.getToken().getToken())
+                .header("Accept", "application/json");
+
+        for (String cursor : new String[] { "steps\nasc\n1\nsx", "time\nasc\n1\nsx", "name\nup\n1\nsx" }) {
+            req.uri("/recipes?cursor=" + Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(cursor.getBytes(StandardCharsets.UTF_8)));
+
+            assertThat(Helpers.route(app, req).status()).isEqualTo(400);
+        }
+    }
+
     @Test
     public void testRecipeCollectionGetOkXml() {
         Http.RequestBuilder req = Helpers.fakeRequest()
@@ -654,6 +1082,55 @@ public class FunctionalTest extends WithApplication {
         assertThat(r.contentType().orElse("")).isEqualTo("application/xml");
     }
 
+    @Test
+    public void testRecipeCollectionSummaryExpand() {
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipes/0")
+                .header("Authorization", user2.getToken().getToken())
+                .header("Accept", "application/json");
+
+        JsonNode summary = Json.parse(Helpers.contentAsString(Helpers.route(app, req), mat)).get("recipes").get(0);
+
+        req.uri("/recipes/0?expand=steps,user");
+        JsonNode expanded = Json.parse(Helpers.contentAsString(Helpers.route(app, req), mat)).get("recipes").get(0);
+
+        req.uri("/recipes/0?expand=password");
+        Result unknown = Helpers.route(app, req);
+
+        assertThat(summary.get("name").asText()).isEqualTo(recipe1.getName());
+        assertThat(summary.has("steps")).isFalse();
+        assertThat(summary.has("reviews")).isFalse();
+        assertThat(expanded.get("steps").asText()).isEqualTo(recipe1.getSteps());
+        assertThat(expanded.get("user").get("name").asText()).isEqualTo(user1.getName());
+        assertThat(expanded.has("reviews")).isFalse();
+        assertThat(unknown.status()).isEqualTo(400);
+    }
+
+    @Test
+    public void testRecipeCollectionSummaryCacheInvalidatedOnUserUpdate() {
+        Http.RequestBuilder get = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipes/0?expand=user")
+                .header("Authorization", user2.getToken().getToken())
+                .header("Accept", "application/json");
+
+        JsonNode before = Json.parse(Helpers.contentAsString(Helpers.route(app, get), mat)).get("recipes").get(0);
+
+        Http.RequestBuilder patch = Helpers.fakeRequest()
+                .method("PATCH")
+                .uri("/user")
+                .header("Authorization", user1.getToken().getToken())
+                .header("Content-Type", "application/json")
+                .bodyJson(userPatchJson);
+
+        Helpers.route(app, patch);
+        JsonNode after = Json.parse(Helpers.contentAsString(Helpers.route(app, get), mat)).get("recipes").get(0);
+
+        assertThat(before.get("user").get("name").asText()).isEqualTo(user1.getName());
+        assertThat(after.get("user").get("name").asText()).isEqualTo("Luis Pérez");
+    }
+
     @Test
     public void testRecipeIngredientPostUnauthorized() {
         Http.RequestBuilder req = Helpers.fakeRequest()
@@ -829,6 +1306,361 @@ public class FunctionalTest extends WithApplication {
         assertThat(r.contentType().orElse("")).isEqualTo("application/xml");
     }
 
+    @Test
+    public void testRecipeFullTextSearchOkJson() {
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipes/search?q=alcachofas")
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/json");
+
+        Result r = Helpers.route(app, req);
+        JsonNode json = Json.parse(Helpers.contentAsString(r, mat));
+
+        assertThat(r.status()).isEqualTo(200);
+        assertThat(json.get("total").asInt()).isEqualTo(2);
+        assertThat(json.get("recipes").get(0).get("name").asText()).isEqualTo(recipe1.getName());
+    }
+
+    @Test
+    public void testRecipeFilterSearchTotalModes() {
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipes/search?type=primero&total=none")
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/json");
+
+        JsonNode none = Json.parse(Helpers.contentAsString(Helpers.route(app, req), mat));
+
+        req.uri("/recipes/search?total=cached&type=Primero");
+        JsonNode cached = Json.parse(Helpers.contentAsString(Helpers.route(app, req), mat));
+
+        assertThat(none.has("total")).isFalse();
+        assertThat(none.get("recipes").size()).isEqualTo(2);
+        assertThat(cached.get("total").asInt()).isEqualTo(2);
+    }
+
+    @Test
+    public void testRecipeSearchCacheInvalidatedOnCreate() {
+        Http.RequestBuilder search = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipes/search?type=primero&sortBy=id:asc&expand=all")
+                .header("Authorization", user2.getToken().getToken())
+                .header("Accept", "application/json");
+
+        JsonNode before = Json.parse(Helpers.contentAsString(Helpers.route(app, search), mat));
+
+        Http.RequestBuilder post = Helpers.fakeRequest()
+                .method("POST")
+                .uri("/recipe")
+                .header("Authorization", user1.getToken().getToken())
+                .header("Content-Type", "application/json")
+                .bodyJson(recipeJson);
+
+        Helpers.route(app, post);
+        search.uri("/recipes/search?sortBy=id:ASC&type=Primero&expand=all");
+        JsonNode after = Json.parse(Helpers.contentAsString(Helpers.route(app, search), mat));
+
+        Http.RequestBuilder get = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipe/" + recipe1.getId())
+                .header("Authorization", user2.getToken().getToken())
+                .header("Accept", "application/json");
+
+        JsonNode single = Json.parse(Helpers.contentAsString(Helpers.route(app, get), mat));
+
+        assertThat(before.get("total").asInt()).isEqualTo(2);
+        assertThat(after.get("total").asInt()).isEqualTo(3);
+        assertThat(after.get("recipes").get(0)).isEqualTo(single);
+    }
+
+    @Test
+    public void testRecipePantrySearchOkJson() {
+        recipe1.validateIngredientAndSave("alcachofa");
+        recipe1.validateIngredientAndSave("queso");
+        recipe2.validateIngredientAndSave("alcachofa");
+        recipe2.validateIngredientAndSave("huevo");
+        recipe2.validateIngredientAndSave("harina");
+
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipes/pantry?ingredients=Alcachofa,queso")
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/json");
+
+        JsonNode only = Json.parse(Helpers.contentAsString(Helpers.route(app, req), mat));
+
+        req.uri("/recipes/pantry?ingredients=alcachofa,queso&missing=2");
+        JsonNode mostly = Json.parse(Helpers.contentAsString(Helpers.route(app, req), mat));
+
+        Http.RequestBuilder post = Helpers.fakeRequest()
+                .method("POST")
+                .uri("/recipe/" + recipe2.getId() + "/ingredient/cebolla")
+                .header("Authorization", user1.getToken().getToken());
+
+        Helpers.route(app, post);
+        req.uri("/recipes/pantry?ingredients=alcachofa,huevo,harina");
+        JsonNode afterAdd = Json.parse(Helpers.contentAsString(Helpers.route(app, req), mat));
+
+        assertThat(only.get("total").asInt()).isEqualTo(1);
+        assertThat(only.get("recipes").get(0).get("name").asText()).isEqualTo(recipe1.getName());
+        assertThat(mostly.get("total").asInt()).isEqualTo(2);
+        assertThat(mostly.get("recipes").get(1).get("name").asText()).isEqualTo(recipe2.getName());
+        assertThat(afterAdd.get("total").asInt()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRecipePantrySearchBadRequest() {
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/json");
+
+        for (String query : new String[] { "missing=two", "missing=-1", "page=first", "page=-1" }) {
+            req.uri("/recipes/pantry?ingredients=alcachofa&" + query);
+
+            assertThat(Helpers.route(app, req).status()).isEqualTo(400);
+        }
+    }
+
+    @Test
+    public void testIngredientAutocompleteOkJson() {
+        recipe1.validateIngredientAndSave("tomillo");
+        recipe1.validateIngredientAndSave("tomate");
+        recipe2.validateIngredientAndSave("tomillo");
+
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/ingredients/autocomplete?prefix=tom")
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/json");
+
+        JsonNode before = Json.parse(Helpers.contentAsString(Helpers.route(app, req), mat));
+
+        Http.RequestBuilder post = Helpers.fakeRequest()
+                .method("POST")
+                .uri("/recipe/" + recipe2.getId() + "/ingredient/tomate")
+                .header("Authorization", user1.getToken().getToken());
+
+        Helpers.route(app, post);
+        JsonNode after = Json.parse(Helpers.contentAsString(Helpers.route(app, req), mat));
+
+        assertThat(before.get("suggestions").size()).isEqualTo(2);
+        assertThat(before.get("suggestions").get(0).asText()).isEqualTo("Tomillo");
+        assertThat(after.get("suggestions").get(0).asText()).isEqualTo("Tomate");
+        assertThat(after.get("suggestions").get(1).asText()).isEqualTo("Tomillo");
+    }
+
+    @Test
+    public void testSimilarRecipesOkJson() {
+        recipe1.validateIngredientAndSave("alcachofa");
+        recipe1.validateIngredientAndSave("queso");
+        recipe2.validateIngredientAndSave("alcachofa");
+        recipe2.validateIngredientAndSave("queso");
+
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipe/" + recipe1.getId() + "/similar")
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/json");
+
+        JsonNode before = Json.parse(Helpers.contentAsString(Helpers.route(app, req), mat));
+
+        for (String ingredient : new String[] { "alcachofa", "queso" }) {
+            Helpers.route(app, Helpers.fakeRequest()
+                    .method("DELETE")
+                    .uri("/recipe/" + recipe2.getId() + "/ingredient/" + ingredient)
+                    .header("Authorization", user1.getToken().getToken()));
+        }
+        JsonNode after = Json.parse(Helpers.contentAsString(Helpers.route(app, req), mat));
+
+        assertThat(before.get("recipes").size()).isEqualTo(1);
+        assertThat(before.get("recipes").get(0).get("name").asText()).isEqualTo(recipe2.getName());
+        assertThat(after.get("recipes").size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRecipeRatingAggregates() {
+        ObjectNode lowReviewJson = (ObjectNode) getReviewJson();
+        lowReviewJson.put("rating", 3.0f);
+
+        Helpers.route(app, Helpers.fakeRequest()
+                .method("POST")
+                .uri("/recipe/" + recipe1.getId() + "/review")
+                .header("Authorization", user1.getToken().getToken())
+                .bodyJson(reviewJson));
+        Helpers.route(app, Helpers.fakeRequest()
+                .method("POST")
+                .uri("/recipe/" + recipe1.getId() + "/review")
+                .header("Authorization", user2.getToken().getToken())
+                .bodyJson(lowReviewJson));
+
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipe/" + recipe1.getId())
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/json");
+
+        JsonNode recipe = Json.parse(Helpers.contentAsString(Helpers.route(app, req), mat));
+
+        req.uri("/recipes/search?minRating=3.5&sortBy=rating:desc");
+        JsonNode search = Json.parse(Helpers.contentAsString(Helpers.route(app, req), mat));
+
+        assertThat(recipe.get("rating").asDouble()).isEqualTo(3.75);
+        assertThat(recipe.get("reviewCount").asInt()).isEqualTo(2);
+        assertThat(recipe.get("ratingHistogram").get(2).asInt()).isEqualTo(1);
+        assertThat(recipe.get("ratingHistogram").get(4).asInt()).isEqualTo(1);
+        assertThat(search.get("total").asInt()).isEqualTo(1);
+        assertThat(search.get("recipes").get(0).get("name").asText()).isEqualTo(recipe1.getName());
+    }
+
+    @Test
+    public void testRecipeRatingAggregatesOnUserDelete() {
+        ObjectNode lowReviewJson = (ObjectNode) getReviewJson();
+        lowReviewJson.put("rating", 3.0f);
+
+        Helpers.route(app, Helpers.fakeRequest()
+                .method("POST")
+                .uri("/recipe/" + recipe1.getId() + "/review")
+                .header("Authorization", user1.getToken().getToken())
+                .bodyJson(reviewJson));
+        Helpers.route(app, Helpers.fakeRequest()
+                .method("POST")
+                .uri("/recipe/" + recipe1.getId() + "/review")
+                .header("Authorization", user2.getToken().getToken())
+                .bodyJson(lowReviewJson));
+
+        Http.RequestBuilder req = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipe/" + recipe1.getId())
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/json");
+
+        JsonNode before = Json.parse(Helpers.contentAsString(Helpers.route(app, req), mat));
+
+        Helpers.route(app, Helpers.fakeRequest()
+                .method("DELETE")
+                .uri("/user")
+                .header("Authorization", user2.getToken().getToken()));
+        JsonNode after = Json.parse(Helpers.contentAsString(Helpers.route(app, req), mat));
+
+        req.uri("/recipes/search?minRating=4&sortBy=rating:desc");
+        JsonNode search = Json.parse(Helpers.contentAsString(Helpers.route(app, req), mat));
+
+        assertThat(before.get("reviewCount").asInt()).isEqualTo(2);
+        assertThat(after.get("rating").asDouble()).isEqualTo(4.5);
+        assertThat(after.get("reviewCount").asInt()).isEqualTo(1);
+        assertThat(after.get("ratingHistogram").get(2).asInt()).isEqualTo(0);
+        assertThat(after.get("ratingHistogram").get(4).asInt()).isEqualTo(1);
+        assertThat(search.get("total").asInt()).isEqualTo(1);
+    }
+
+    @Test
+    public void testSearchBulkheadSeparateFromReads() throws Exception {
+        Bulkheads bulkheads = app.injector().instanceOf(Bulkheads.class);
+
+        String search = bulkheads.search().supply(() -> Thread.currentThread().getName()).toCompletableFuture().get();
+        String read = bulkheads.read().supply(() -> Thread.currentThread().getName()).toCompletableFuture().get();
+
+        assertThat(search).startsWith("bulkhead-search-");
+        assertThat(read).startsWith("bulkhead-read-");
+    }
+
+    @Test
+    public void testAdmissionMetrics() {
+        Http.RequestBuilder get = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipe/" + recipe1.getId())
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/json");
+
+        // Tokens are only known to the admission control once they are cached
+        Helpers.route(app, get);
+        Helpers.route(app, get);
+
+        Http.RequestBuilder metrics = Helpers.fakeRequest().method("GET").uri("/metrics/admission");
+        Result unauthorized = Helpers.route(app, metrics);
+
+        metrics.header("Authorization", user1.getToken().getToken());
+        Result r = Helpers.route(app, metrics);
+        JsonNode json = Json.parse(Helpers.contentAsString(r, mat));
+
+        assertThat(unauthorized.status()).isEqualTo(401);
+        assertThat(r.status()).isEqualTo(200);
+        assertThat(json.get("limit").asInt()).isPositive();
+        assertThat(json.get("inFlight").asInt()).isEqualTo(0);
+        assertThat(json.get("priorities").get("anonymous").get("admitted").asLong()).isEqualTo(1);
+        assertThat(json.get("priorities").get("read").get("admitted").asLong()).isEqualTo(1);
+        assertThat(json.get("bulkheads").has("search")).isTrue();
+    }
+
+    @Test
+    public void testAdmissionPermitHeldUntilBodyIsSent() {
+        Http.RequestBuilder get = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/recipes/0")
+                .header("Authorization", user2.getToken().getToken())
+                .header("Accept", "application/json");
+
+        Result r = Helpers.route(app, get);
+        AdmissionControl admission = app.injector().instanceOf(AdmissionControl.class);
+        int streaming = admission.getInFlight();
+        Helpers.contentAsString(r, mat);
+
+        assertThat(streaming).isEqualTo(1);
+        assertThat(admission.getInFlight()).isEqualTo(0);
+    }
+
+    @Test
+    public void testUserRecipesQueryCountDoesNotGrowWithPageSize() {
+        for (int i = 0; i < 6; i++) {
+            Recipe recipe = getRecipe1();
+            recipe.setName("Receta " + i);
+            recipe.setUser((i == 0) ? user2 : user1);
+            recipe.validateAndSave();
+            recipe.validateIngredientAndSave("tomate");
+            recipe.validateIngredientAndSave("ajo");
+            recipe.validateTagAndSave("verano");
+
+            Review review = new Review();
+            review.setComment("Muy buena");
+            review.setRating(4.0f);
+            review.setUser(user2);
+            recipe.addReview(review);
+        }
+
+        Http.RequestBuilder few = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/user/" + user2.getId() + "/recipes/0")
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/json");
+        Http.RequestBuilder many = Helpers.fakeRequest()
+                .method("GET")
+                .uri("/user/" + user1.getId() + "/recipes/0")
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/json");
+
+        // Leaves the authenticated user in the token cache
+        Helpers.route(app, Helpers.fakeRequest()
+                .method("GET")
+                .uri("/user/" + user1.getId())
+                .header("Authorization", user1.getToken().getToken())
+                .header("Accept", "application/json"));
+
+        resetQueryCount();
+        Result fewResult = Helpers.route(app, few);
+        long fewQueries = getQueryCount();
+
+        resetQueryCount();
+        Result manyResult = Helpers.route(app, many);
+        long manyQueries = getQueryCount();
+
+        assertThat(Json.parse(Helpers.contentAsString(fewResult, mat)).get("recipes").size()).isEqualTo(1);
+        assertThat(Json.parse(Helpers.contentAsString(manyResult, mat)).get("recipes").size()).isEqualTo(7);
+        assertThat(manyQueries).isEqualTo(fewQueries);
+        assertThat(manyQueries).isLessThanOrEqualTo(6);
+    }
+
     private User getUser1() {
         User user = new User();
         user.setDni("70917793F");
@@ -870,6 +1702,22 @@ public class FunctionalTest extends WithApplication {
         return recipe;
     }
 
+    // Statistics of the statements run by H2 are only kept while enabled
+    private static void resetQueryCount() {
+        Ebean.createSqlUpdate("set query_statistics false").execute();
+        Ebean.createSqlUpdate("set query_statistics true").execute();
+    }
+
+    private static long getQueryCount() {
+        SqlRow row = Ebean
+                .createSqlQuery("select sum(execution_count) as queries from information_schema.query_statistics"
+                        + " where lower(sql_statement) like 'select%'"
+                        + " and lower(sql_statement) not like '%query_statistics%'")
+                .findOne();
+
+        return (row.getLong("queries") != null) ? row.getLong("queries") : 0;
+    }
+
     private JsonNode getRecipeJson() {
         Recipe recipe = getRecipe1();
         recipe.setName("Migas de bacalao con tomate");
@@ -1,13 +1,36 @@
 import models.Token;
 import org.junit.Test;
+import play.cache.SyncCacheApi;
+import services.AdmissionControl;
+import services.Bulkhead;
+import services.CompletionTrie;
+import services.RecipeSearchIndex;
+import services.SignedTokens;
+import services.TaggedCache;
+import services.TextAnalyzer;
+import services.TokenCache;
 import validators.DNIValidator;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
 
 /**
  * Unit testing does not require Play application start up.
@@ -50,4 +73,356 @@ public class UnitTest {
 
         assertThat(validator.isValid("72654873W", null)).isFalse();
     }
+
+    @Test
+    public void testTokenCacheEviction() {
+        TokenCache cache = new TokenCache(2, TimeUnit.MINUTES.toNanos(5));
+
+        cache.put("a", 1L);
+        cache.put("b", 1L);
+        cache.get("a");
+        cache.put("c", 1L);
+
+        assertThat(cache.get("a")).isEqualTo(1L);
+        assertThat(cache.get("b")).isNull();
+        assertThat(cache.contains("a")).isTrue();
+        assertThat(cache.contains("b")).isFalse();
+        assertThat(cache.getHitCount()).isEqualTo(2);
+        assertThat(cache.getMissCount()).isEqualTo(1);
+
+        cache.evictUser(1L);
+
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testTokenCacheExpiration() {
+        TokenCache cache = new TokenCache(10, 0);
+
+        cache.put("a", 1L);
+
+        assertThat(cache.get("a")).isNull();
+    }
+
+    @Test
+    public void testSignedTokenVerification() {
+        SignedTokens tokens = new SignedTokens(true,
+                "secret".getBytes(StandardCharsets.UTF_8), 10, TimeUnit.MINUTES.toNanos(1));
+
+        String token = tokens.sign(7L, 3L);
+
+        assertThat(tokens.isSigned(token)).isTrue();
+        assertThat(tokens.verify(token)).containsExactly(7L, 3L);
+        assertThat(tokens.verify(token.replace("s1.7.", "s1.8."))).isNull();
+        assertThat(tokens.verify(token + "x")).isNull();
+    }
+
+    @Test
+    public void testSignedTokenRevocation() {
+        SignedTokens tokens = new SignedTokens(true,
+                "secret".getBytes(StandardCharsets.UTF_8), 10, TimeUnit.MINUTES.toNanos(1));
+
+        assertThat(tokens.currentGeneration(7L)).isNull();
+
+        tokens.rotate(7L, 3L);
+        assertThat(tokens.currentGeneration(7L)).isEqualTo(3L);
+
+        tokens.revoke(7L);
+        assertThat(tokens.isRevoked(tokens.currentGeneration(7L))).isTrue();
+    }
+
+    @Test
+    public void testTaggedCacheInvalidation() {
+        TaggedCache cache = new TaggedCache(new MapCacheApi(), 10, TimeUnit.HOURS.toNanos(1));
+
+        cache.getOrElseUpdate("a", () -> "A", 0, v -> new String[] { "x" });
+        cache.getOrElseUpdate("b", () -> "B", 0, v -> new String[] { "y" });
+        cache.invalidate("x");
+
+        assertThat((String) cache.get("a")).isNull();
+        assertThat((String) cache.get("b")).isEqualTo("B");
+    }
+
+    @Test
+    public void testTaggedCacheRemembersMissingValues() {
+        TaggedCache cache = new TaggedCache(new MapCacheApi(), 10, TimeUnit.HOURS.toNanos(1));
+
+        cache.getOrElseUpdate("a", () -> null, 0, v -> new String[] { "x" }, "x");
+        cache.getOrElseUpdate("a", () -> "A", 0, v -> new String[] { "x" }, "x");
+
+        assertThat(cache.getLoadCount()).isEqualTo(1);
+
+        cache.invalidate("x");
+
+        assertThat((String) cache.getOrElseUpdate("a", () -> "A", 0, v -> new String[] { "x" }, "x"))
+                .isEqualTo("A");
+    }
+
+    @Test
+    public void testTaggedCacheForgetsOldInvalidations() {
+        TaggedCache cache = new TaggedCache(new MapCacheApi(), 10, 0);
+
+        cache.set("a", "A", 0, "x");
+        cache.set("b", "B");
+        cache.invalidate("y");
+        cache.invalidate("z");
+
+        assertThat(cache.getInvalidatedTagCount()).isZero();
+        assertThat((String) cache.get("a")).isNull();
+        assertThat((String) cache.get("b")).isEqualTo("B");
+    }
+
+    @Test
+    public void testTaggedCacheCoalescesLoads() throws Exception {
+        TaggedCache cache = new TaggedCache(new MapCacheApi(), 10, TimeUnit.HOURS.toNanos(1));
+        CountDownLatch latch = new CountDownLatch(1);
+        final int numCallers = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(numCallers);
+
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < numCallers; i++) {
+            results.add(CompletableFuture.supplyAsync(() ->
+                    cache.getOrElseUpdate("a", () -> {
+                        try {
+                            latch.await();
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        return "A";
+                    }, 0, v -> new String[] { "x" }), executor));
+        }
+
+        await().until(() -> cache.getCoalescedLoadCount() == numCallers - 1);
+        latch.countDown();
+
+        for (CompletableFuture<String> result : results) {
+            assertThat(result.get()).isEqualTo("A");
+        }
+        assertThat(cache.getLoadCount()).isEqualTo(1);
+        executor.shutdown();
+    }
+
+    @Test
+    public void testTaggedCacheCoalescesLoadsDespiteUnrelatedInvalidations() throws Exception {
+        TaggedCache cache = new TaggedCache(new MapCacheApi(), 10, TimeUnit.HOURS.toNanos(1));
+        CountDownLatch latch = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        CompletableFuture<String> first = CompletableFuture.supplyAsync(() ->
+                cache.getOrElseUpdate("a", () -> {
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return "A";
+                }, 0, v -> new String[] { "x" }), executor);
+        await().until(() -> cache.getLoadCount() == 1);
+
+        cache.invalidate("y");
+        CompletableFuture<String> second = CompletableFuture.supplyAsync(() ->
+                cache.getOrElseUpdate("a", () -> "B", 0, v -> new String[] { "x" }), executor);
+        await().until(() -> cache.getCoalescedLoadCount() == 1);
+        latch.countDown();
+
+        assertThat(first.get()).isEqualTo("A");
+        assertThat(second.get()).isEqualTo("A");
+        assertThat(cache.getLoadCount()).isEqualTo(1);
+        executor.shutdown();
+    }
+
+    @Test
+    public void testTaggedCacheBatchLoad() {
+        TaggedCache cache = new TaggedCache(new MapCacheApi(), 10, TimeUnit.HOURS.toNanos(1));
+        cache.set("a", "A", 0, "x");
+
+        Map<String, String> values = cache.getOrElseUpdateAll(Arrays.asList("a", "b", "c"), missing -> {
+            assertThat(missing).containsExactly("b", "c");
+            return Collections.singletonMap("b", "B");
+        }, 0, v -> new String[] { "x" });
+
+        assertThat(values).containsOnlyKeys("a", "b");
+        assertThat((String) cache.get("b")).isEqualTo("B");
+        assertThat(cache.getLoadCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testCompletionTrie() {
+        CompletionTrie trie = new CompletionTrie(2);
+        trie.add("Tomillo", 1);
+        trie.add("Tomate", 3);
+        trie.add("Tofu", 2);
+        trie.add("Limón", 5);
+
+        assertThat(trie.complete("to", 10)).containsExactly("Tomate", "Tofu");
+        assertThat(trie.complete("TOM", 10)).containsExactly("Tomate", "Tomillo");
+        assertThat(trie.complete("limon", 10)).containsExactly("Limón");
+
+        trie.add("Tomate", -3);
+
+        assertThat(trie.complete("to", 10)).containsExactly("Tofu", "Tomillo");
+        assertThat(trie.complete("x", 10)).isEmpty();
+    }
+
+    @Test
+    public void testTextAnalyzer() {
+        assertThat(TextAnalyzer.tokenize("Alcachofas guisadas con Piñones y jamón"))
+                .containsExactly("alcachofa", "guisada", "piñone", "jamon");
+    }
+
+    @Test
+    public void testRecipeSearchRanksMostRelevantMatches() {
+        Map<Long, Double> scores = new HashMap<>();
+        for (long id = 1; id <= RecipeSearchIndex.MAX_RESULTS + 10; id++) {
+            scores.put(id, (double) (id % 100));
+        }
+
+        List<Long> ids = RecipeSearchIndex.rank(scores);
+
+        assertThat(ids).hasSize(RecipeSearchIndex.MAX_RESULTS);
+        assertThat(ids.subList(0, 3)).containsExactly(99L, 199L, 299L);
+        assertThat(ids).doesNotContain(100L, 1000L);
+    }
+
+    @Test
+    public void testBulkheadRejectsWorkBeyondItsQueue() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("test", 1, 1);
+        CountDownLatch latch = new CountDownLatch(1);
+
+        CompletionStage<String> running = bulkhead.supply(() -> {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return "running";
+        });
+        await().until(() -> bulkhead.getActiveCount() == 1);
+        CompletionStage<String> queued = bulkhead.supply(() -> "queued");
+        CompletionStage<String> rejected = bulkhead.supply(() -> "rejected");
+
+        assertThat(rejected).isNull();
+        assertThat(bulkhead.getQueuedCount()).isEqualTo(1);
+        assertThat(bulkhead.getRejectedCount()).isEqualTo(1);
+
+        latch.countDown();
+        assertThat(running.toCompletableFuture().get()).isEqualTo("running");
+        assertThat(queued.toCompletableFuture().get()).isEqualTo("queued");
+    }
+
+    @Test
+    public void testAdmissionControlShedsAnonymousRequestsFirst() {
+        AdmissionControl admission = new AdmissionControl(10, 10, 10, 0.9, TimeUnit.MILLISECONDS.toNanos(50),
+                getAdmissionShares(), () -> 0, () -> 0);
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(admission.tryAcquire(AdmissionControl.Priority.ANONYMOUS)).isTrue();
+        }
+        assertThat(admission.tryAcquire(AdmissionControl.Priority.ANONYMOUS)).isFalse();
+        for (int i = 0; i < 3; i++) {
+            assertThat(admission.tryAcquire(AdmissionControl.Priority.READ)).isTrue();
+        }
+        assertThat(admission.tryAcquire(AdmissionControl.Priority.READ)).isFalse();
+        assertThat(admission.tryAcquire(AdmissionControl.Priority.WRITE)).isTrue();
+        assertThat(admission.tryAcquire(AdmissionControl.Priority.WRITE)).isTrue();
+        assertThat(admission.tryAcquire(AdmissionControl.Priority.WRITE)).isFalse();
+
+        assertThat(admission.getRejectedCount(AdmissionControl.Priority.ANONYMOUS)).isEqualTo(1);
+        assertThat(admission.getInFlight()).isEqualTo(10);
+    }
+
+    @Test
+    public void testAdmissionControlAdaptsLimitToQueueingDelay() {
+        long[] delay = { 0 };
+        AdmissionControl admission = new AdmissionControl(10, 2, 20, 0.5, 0, getAdmissionShares(),
+                () -> delay[0], () -> 0);
+
+        for (int i = 0; i < 10; i++) {
+            admission.tryAcquire(AdmissionControl.Priority.WRITE);
+        }
+        admission.release();
+        assertThat(admission.getLimit()).isEqualTo(10);
+
+        delay[0] = TimeUnit.SECONDS.toNanos(1);
+        admission.release();
+        assertThat(admission.getLimit()).isEqualTo(5);
+        assertThat(admission.getInFlight()).isEqualTo(8);
+    }
+
+    @Test
+    public void testAdmissionControlGrowsLimitByOnePerWindow() {
+        AdmissionControl admission = new AdmissionControl(10, 2, 500, 0.5, TimeUnit.SECONDS.toNanos(1),
+                getAdmissionShares(), () -> 0, () -> 0);
+
+        for (int i = 0; i < 10; i++) {
+            admission.tryAcquire(AdmissionControl.Priority.WRITE);
+        }
+        // A full window of completions, each one replaced by a new request
+        for (int i = 0; i < 10; i++) {
+            admission.release();
+            admission.tryAcquire(AdmissionControl.Priority.WRITE);
+        }
+        int afterWindow = admission.getLimit();
+
+        for (int i = 0; i < 90; i++) {
+            admission.release();
+            admission.tryAcquire(AdmissionControl.Priority.WRITE);
+        }
+
+        assertThat(afterWindow).isEqualTo(10);
+        assertThat(admission.getLimit()).isBetween(16, 18);
+    }
+
+    private static Map<AdmissionControl.Priority, Double> getAdmissionShares() {
+        Map<AdmissionControl.Priority, Double> shares = new EnumMap<>(AdmissionControl.Priority.class);
+        shares.put(AdmissionControl.Priority.ANONYMOUS, 0.5);
+        shares.put(AdmissionControl.Priority.READ, 0.8);
+        shares.put(AdmissionControl.Priority.WRITE, 1.0);
+        return shares;
+    }
+
+    private static class MapCacheApi implements SyncCacheApi {
+
+        private final Map<String, Object> map = new HashMap<>();
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public synchronized <T> T get(String key) {
+            return (T) map.get(key);
+        }
+
+        @Override
+        public <T> T getOrElseUpdate(String key, Callable<T> block, int expiration) {
+            return getOrElseUpdate(key, block);
+        }
+
+        @Override
+        public synchronized <T> T getOrElseUpdate(String key, Callable<T> block) {
+            T value = get(key);
+            if (value == null) {
+                try {
+                    value = block.call();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                set(key, value);
+            }
+            return value;
+        }
+
+        @Override
+        public void set(String key, Object value, int expiration) {
+            set(key, value);
+        }
+
+        @Override
+        public synchronized void set(String key, Object value) {
+            map.put(key, value);
+        }
+
+        @Override
+        public synchronized void remove(String key) {
+            map.remove(key);
+        }
+    }
 }